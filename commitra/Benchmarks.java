@@ -0,0 +1,830 @@
+package commitra;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Formatter;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static commitra.Utils.readObject;
+import static commitra.Utils.writeContents;
+import static commitra.Utils.writeObject;
+
+/** Timing harness for Commitra.  Invoke as
+ *      java commitra.Benchmarks merge-base [COMMITS] [MERGE_EVERY]
+ *      java commitra.Benchmarks sha1 [OPS]
+ *      java commitra.Benchmarks serialize [FILES] [OPS]
+ *      java commitra.Benchmarks merge-plan [FILES] [CHANGES] [OPS]
+ *      java commitra.Benchmarks diff3 [LINES] [EDIT_EVERY] [OPS]
+ *      java commitra.Benchmarks resolve [COMMITS] [OPS]
+ *      java commitra.Benchmarks repo [FILES] [FILE_SIZE] [COMMITS]
+ *                                    [BRANCHES] [MERGE_EVERY] [ITERATIONS]
+ *      java commitra.Benchmarks startup [FILES] [COMMITS] [ITERATIONS]
+ *                                       [ARCHIVE]
+ *      java commitra.Benchmarks train
+ *  optionally followed by --json FILE to also write the results as JSON,
+ *  so that runs of different versions can be compared.  Results are
+ *  printed one line per benchmark.
+ *
+ *  The first six run on synthetic data, in memory or in a temporary
+ *  object store.  repo builds a
+ *  synthetic repository in the current directory, which must be empty,
+ *  times each command end to end through Main.main, and then deletes
+ *  everything it created.  startup does the same, but runs each command
+ *  in a new JVM, as from a shell, so that it measures cold starts, also
+ *  with the class-data-sharing archive ARCHIVE if one is given.  train
+ *  is not timed: it runs every command once, for the Makefile's
+ *  fast-start target to record the classes they load.
+ */
+public class Benchmarks {
+
+    /** Seed for all synthetic data, so runs are comparable. */
+    private static final long SEED = 61;
+
+    /** Results of this run, in the order they were reported. */
+    private static final List<String> RESULTS = new ArrayList<>();
+
+    public static void main(String... args) throws IOException {
+        String json = null;
+        List<String> rest = new ArrayList<>(Arrays.asList(args));
+        int flag = rest.indexOf("--json");
+        if (flag >= 0 && flag + 1 < rest.size()) {
+            json = rest.get(flag + 1);
+            rest.subList(flag, flag + 2).clear();
+        }
+        args = rest.toArray(new String[0]);
+        if (args.length == 0) {
+            System.out.println("Please enter a benchmark.");
+            return;
+        }
+        switch (args[0]) {
+            case "merge-base":
+                mergeBase(intArg(args, 1, 100000), intArg(args, 2, 10));
+                break;
+            case "sha1":
+                sha1(intArg(args, 1, 1000000));
+                break;
+            case "serialize":
+                serialize(intArg(args, 1, 1000), intArg(args, 2, 2000));
+                break;
+            case "merge-plan":
+                mergePlan(intArg(args, 1, 100000), intArg(args, 2, 1000),
+                        intArg(args, 3, 50));
+                break;
+            case "diff3":
+                diff3(intArg(args, 1, 200000), intArg(args, 2, 100),
+                        intArg(args, 3, 20));
+                break;
+            case "resolve":
+                resolve(intArg(args, 1, 100000), intArg(args, 2, 10000));
+                break;
+            case "repo":
+                repo(intArg(args, 1, 200), intArg(args, 2, 4096),
+                        intArg(args, 3, 100), intArg(args, 4, 4),
+                        intArg(args, 5, 10), intArg(args, 6, 20));
+                break;
+            case "startup":
+                startup(intArg(args, 1, 50), intArg(args, 2, 20),
+                        intArg(args, 3, 5), args.length > 4 ? args[4] : null);
+                break;
+            case "train":
+                train();
+                break;
+            default:
+                System.out.println("No benchmark with that name exists.");
+                return;
+        }
+        if (json != null) {
+            writeContents(new File(json), "{\"benchmark\": \"" + args[0]
+                    + "\", \"args\": \"" + String.join(" ", args)
+                    + "\", \"java\": \"" + System.getProperty("java.version")
+                    + "\", \"results\": [\n  "
+                    + String.join(",\n  ", RESULTS) + "\n]}\n");
+        }
+    }
+
+    /** Builds an in-memory graph of COMMITS commits spread over sixteen
+     *  branches, merging two random branches every MERGEEVERY commits,
+     *  and times merge-base queries between random branch tips. */
+    static void mergeBase(int commits, int mergeEvery) {
+        Random random = new Random(SEED);
+        List<String> tips = new ArrayList<>();
+        CommitGraph graph = syntheticGraph(commits, mergeEvery, 16,
+                random, tips);
+
+        int queries = 1000;
+        long start = System.nanoTime();
+        int found = 0;
+        for (int i = 0; i < queries; i += 1) {
+            String a = tips.get(random.nextInt(tips.size()));
+            String b = tips.get(random.nextInt(tips.size()));
+            if (new MergeBase(graph).find(a, b) != null) {
+                found += 1;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        report("merge-base", queries, elapsed,
+                String.format("commits=%d merge-every=%d found=%d",
+                        graph.size(), mergeEvery, found));
+    }
+
+    /** Times Utils.sha1 against the original implementation, which
+     *  looked up a new MessageDigest and formatted each byte with
+     *  Formatter, on commit-id-sized inputs and on 4 KB blobs.  Each
+     *  case is run twice and only the second run is reported, so the
+     *  first serves as JIT warm-up. */
+    static void sha1(int ops) {
+        byte[] blob = new byte[4096];
+        new Random(SEED).nextBytes(blob);
+        for (int round = 0; round < 2; round += 1) {
+            boolean print = round == 1;
+            long sink = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < ops; i += 1) {
+                sink += legacySha1("msg", Integer.toString(i), "date")
+                        .charAt(0);
+            }
+            long legacy = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < ops; i += 1) {
+                sink += Utils.sha1("msg", Integer.toString(i), "date")
+                        .charAt(0);
+            }
+            long current = System.nanoTime() - start;
+            int blobOps = ops / 10;
+            start = System.nanoTime();
+            for (int i = 0; i < blobOps; i += 1) {
+                sink += legacySha1(blob).charAt(0);
+            }
+            long legacyBlob = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < blobOps; i += 1) {
+                sink += Utils.sha1(ByteBuffer.wrap(blob)).charAt(0);
+            }
+            long currentBlob = System.nanoTime() - start;
+            if (print) {
+                report("sha1-id-legacy", ops, legacy, "");
+                report("sha1-id", ops, current, "sink=" + sink);
+                report("sha1-4k-legacy", blobOps, legacyBlob, "");
+                report("sha1-4k", blobOps, currentBlob, "");
+            }
+        }
+    }
+
+    /** The original Utils.sha1, kept as the baseline for sha1. */
+    private static String legacySha1(Object... vals) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            for (Object val : vals) {
+                if (val instanceof byte[]) {
+                    md.update((byte[]) val);
+                } else {
+                    md.update(((String) val).getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            Formatter result = new Formatter();
+            for (byte b : md.digest()) {
+                result.format("%02x", b);
+            }
+            return result.toString();
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+    }
+
+    /** Times writing and reading a commit tracking FILES files, OPS
+     *  times each, in BinaryFormat (full and header-only decode) and with
+     *  the Java serialization of the file map it replaced, and times
+     *  writing the trees of those files, spread over directories, whole
+     *  and after a one-file change. */
+    static void serialize(int files, int ops) throws IOException {
+        TreeMap<String, String> blobs = new TreeMap<>();
+        int dirs = Math.max(1, (int) Math.sqrt(files));
+        for (int i = 0; i < files; i += 1) {
+            blobs.put("dir" + (i % dirs) + "/file" + i + ".txt",
+                    Utils.sha1(Integer.toString(i)));
+        }
+        File objects = Files.createTempDirectory("objects").toFile();
+        ObjectStore store =
+                new ObjectStore(objects, ObjectStore.Codec.DEFLATE);
+        String tree = Tree.write(store, blobs);
+        Commit legacyCommit = new Commit("message", Utils.sha1("parent"),
+                blobs, "Wed Dec 31 16:00:00 1969 -0800");
+        Commit commit = new Commit("message", Utils.sha1("parent"), tree,
+                "Wed Dec 31 16:00:00 1969 -0800");
+        File binary = File.createTempFile("commit", ".bench");
+        File legacy = File.createTempFile("legacy", ".bench");
+        binary.deleteOnExit();
+        legacy.deleteOnExit();
+        String changed = blobs.firstKey();
+        for (int round = 0; round < 2; round += 1) {
+            long[][] samples = new long[7][ops];
+            for (int i = 0; i < ops; i += 1) {
+                long start = System.nanoTime();
+                writeContents(legacy, Utils.serialize(legacyCommit));
+                samples[0][i] = System.nanoTime() - start;
+                start = System.nanoTime();
+                readObject(legacy, Commit.class);
+                samples[1][i] = System.nanoTime() - start;
+                start = System.nanoTime();
+                writeObject(binary, commit);
+                samples[2][i] = System.nanoTime() - start;
+                start = System.nanoTime();
+                readObject(binary, Commit.class);
+                samples[3][i] = System.nanoTime() - start;
+                start = System.nanoTime();
+                BinaryFormat.readHeader(binary);
+                samples[4][i] = System.nanoTime() - start;
+                TreeMap<String, String> edited = new TreeMap<>(blobs);
+                edited.put(changed, Utils.sha1("edit" + i));
+                start = System.nanoTime();
+                Tree.write(store, edited);
+                samples[5][i] = System.nanoTime() - start;
+                start = System.nanoTime();
+                Tree.update(store, tree,
+                        Map.of(changed, Utils.sha1("edit" + i)), List.of());
+                samples[6][i] = System.nanoTime() - start;
+            }
+            if (round == 1) {
+                String legacySize = "files=" + files + " bytes="
+                        + legacy.length();
+                String binarySize = "files=" + files + " bytes="
+                        + binary.length();
+                String treeSize = "files=" + files + " dirs=" + dirs;
+                record("java-serialize", samples[0], legacySize);
+                record("java-deserialize", samples[1], legacySize);
+                record("binary-encode", samples[2], binarySize);
+                record("binary-decode", samples[3], binarySize);
+                record("binary-header", samples[4], binarySize);
+                record("tree-write", samples[5], treeSize);
+                record("tree-update", samples[6], treeSize);
+            }
+        }
+        delete(objects);
+    }
+
+    /** Times MergePlan on trees of FILES files spread over directories,
+     *  OPS times, where each side of the merge changed CHANGES files
+     *  since the base, one in ten of them on both sides.  Each plan is
+     *  also timed against flattening all three trees and comparing every
+     *  path, which is what a merge without trees has to do. */
+    static void mergePlan(int files, int changes, int ops)
+            throws IOException {
+        TreeMap<String, String> base = new TreeMap<>();
+        int dirs = Math.max(1, (int) Math.sqrt(files));
+        for (int i = 0; i < files; i += 1) {
+            base.put("dir" + (i % dirs) + "/file" + i + ".txt",
+                    Utils.sha1(Integer.toString(i)));
+        }
+        Random random = new Random(SEED);
+        List<String> paths = new ArrayList<>(base.keySet());
+        Map<String, String> ours = new TreeMap<>();
+        Map<String, String> theirs = new TreeMap<>();
+        for (int i = 0; i < changes; i += 1) {
+            String path = paths.get(random.nextInt(paths.size()));
+            ours.put(path, Utils.sha1("ours" + i));
+            if (i % 10 != 0) {
+                path = paths.get(random.nextInt(paths.size()));
+            }
+            theirs.put(path, Utils.sha1("theirs" + i));
+        }
+        File objects = Files.createTempDirectory("objects").toFile();
+        ObjectStore store =
+                new ObjectStore(objects, ObjectStore.Codec.DEFLATE);
+        String baseTree = Tree.write(store, base);
+        String ourTree = Tree.update(store, baseTree, ours, List.of());
+        String theirTree = Tree.update(store, baseTree, theirs, List.of());
+        int actions = 0;
+        for (int round = 0; round < 2; round += 1) {
+            long[][] samples = new long[2][ops];
+            int flat = 0;
+            for (int i = 0; i < ops; i += 1) {
+                long start = System.nanoTime();
+                actions = MergePlan.plan(store, baseTree, ourTree,
+                        theirTree).actions().size();
+                samples[0][i] = System.nanoTime() - start;
+                start = System.nanoTime();
+                TreeMap<String, String> s = Tree.files(store, baseTree);
+                TreeMap<String, String> o = Tree.files(store, ourTree);
+                TreeMap<String, String> t = Tree.files(store, theirTree);
+                for (String path : s.keySet()) {
+                    if (!Objects.equals(o.get(path), t.get(path))) {
+                        flat += 1;
+                    }
+                }
+                samples[1][i] = System.nanoTime() - start;
+            }
+            if (round == 1) {
+                String detail = String.format("files=%d changes=%d "
+                        + "actions=%d", files, changes, actions);
+                record("merge-plan", samples[0], detail);
+                record("merge-flat", samples[1], detail
+                        + " differing=" + flat / ops);
+            }
+        }
+        delete(objects);
+    }
+
+    /** Times Diff, its unified output and Merge3 on a file of LINES
+     *  lines, OPS times, whose two versions each change one line in
+     *  EDITEVERY, at different places except that every tenth edit hits
+     *  the same line on both sides and so conflicts.  Output is written
+     *  to a null stream. */
+    static void diff3(int lines, int editEvery, int ops) throws IOException {
+        Random random = new Random(SEED);
+        StringBuilder base = new StringBuilder();
+        StringBuilder ours = new StringBuilder();
+        StringBuilder theirs = new StringBuilder();
+        int edits = 0;
+        for (int i = 0; i < lines; i += 1) {
+            String line = "line " + i + " " + random.nextLong() + "\n";
+            base.append(line);
+            ours.append(i % editEvery == 0 ? "ours " + line : line);
+            boolean same = i % (editEvery * 10) == 0;
+            theirs.append(i % editEvery == (same ? 0 : editEvery / 2)
+                    ? "theirs " + line : line);
+            edits += i % editEvery == 0 ? 1 : 0;
+        }
+        byte[] o = base.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] a = ours.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] b = theirs.toString().getBytes(StandardCharsets.UTF_8);
+        int conflicts = 0;
+        for (int round = 0; round < 2; round += 1) {
+            long[][] samples = new long[3][ops];
+            for (int i = 0; i < ops; i += 1) {
+                long start = System.nanoTime();
+                Diff.diff(new Diff.Text(o), new Diff.Text(a));
+                samples[0][i] = System.nanoTime() - start;
+                start = System.nanoTime();
+                Diff.unified("file", o, a, OutputStream.nullOutputStream());
+                samples[2][i] = System.nanoTime() - start;
+                start = System.nanoTime();
+                conflicts = Merge3.merge(o, a, b,
+                        OutputStream.nullOutputStream());
+                samples[1][i] = System.nanoTime() - start;
+            }
+            if (round == 1) {
+                String detail = String.format("lines=%d bytes=%d "
+                        + "edits=%d conflicts=%d", lines, o.length, edits,
+                        conflicts);
+                record("diff", samples[0], detail);
+                record("diff3-merge", samples[1], detail);
+                record("diff-unified", samples[2], detail);
+            }
+        }
+    }
+
+    /** Times resolving OPS random 7-digit commit id prefixes among
+     *  COMMITS commits with CommitIndex, against a linear scan of the
+     *  commit file names as findCommitID did, cut to a tenth of OPS. */
+    static void resolve(int commits, int ops) throws IOException {
+        File graphFile = File.createTempFile("graph", ".bench");
+        File ids = File.createTempFile("ids", ".bench");
+        graphFile.deleteOnExit();
+        ids.deleteOnExit();
+        graphFile.delete();
+        CommitGraph graph = new CommitGraph(graphFile);
+        List<String> names = new ArrayList<>();
+        String parent = "";
+        for (int i = 0; i < commits; i += 1) {
+            String id = Utils.sha1("commit" + i);
+            graph.add(id, parent, "", i);
+            names.add(id + ".txt");
+            parent = id;
+        }
+        names.sort(null);
+        CommitIndex index = new CommitIndex(ids, graphFile);
+        index.rebuild();
+        Random random = new Random(SEED);
+        int scans = Math.max(1, ops / 10);
+        for (int round = 0; round < 2; round += 1) {
+            long[] indexed = new long[ops];
+            long[] scanned = new long[scans];
+            for (int i = 0; i < ops; i += 1) {
+                String prefix = names.get(random.nextInt(commits))
+                        .substring(0, 7);
+                long start = System.nanoTime();
+                index.find(prefix, 2);
+                indexed[i] = System.nanoTime() - start;
+            }
+            for (int i = 0; i < scans; i += 1) {
+                String prefix = names.get(random.nextInt(commits))
+                        .substring(0, 7);
+                long start = System.nanoTime();
+                for (String name : names) {
+                    if (name.startsWith(prefix)) {
+                        break;
+                    }
+                }
+                scanned[i] = System.nanoTime() - start;
+            }
+            if (round == 1) {
+                String detail = "commits=" + commits;
+                record("resolve-index", indexed, detail);
+                record("resolve-scan", scanned, detail);
+            }
+        }
+    }
+
+    /** Builds a repository in the current directory, which must be empty,
+     *  and times every command on it ITERATIONS times, through Main.main
+     *  as from the command line.  The repository starts with FILES files
+     *  of FILESIZE bytes, then gets COMMITS commits spread over BRANCHES
+     *  branches, each changing one file, with the current branch merging
+     *  another every MERGEEVERY commits.  Branch k only changes files
+     *  whose number is k modulo BRANCHES, so merges never conflict. */
+    static void repo(int files, int fileSize, int commits, int branches,
+                     int mergeEvery, int iterations) {
+        File cwd = emptyDirectory("repo");
+        if (cwd == null) {
+            return;
+        }
+        Random random = new Random(SEED);
+        PrintStream out = System.out;
+        try {
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            long start = System.nanoTime();
+            generate(cwd, random, files, fileSize, commits, branches,
+                    mergeEvery);
+            long built = System.nanoTime() - start;
+            System.setOut(out);
+            report("repo-generate", 1, built, String.format(
+                    "files=%d size=%d commits=%d branches=%d merge-every=%d",
+                    files, fileSize, commits, branches, mergeEvery));
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+            long[][] samples = new long[11][iterations];
+            for (int i = 0; i < iterations; i += 1) {
+                String f = "f" + random.nextInt(files) + ".txt";
+                edit(cwd, f, random, fileSize);
+                samples[0][i] = time("add", f);
+                samples[1][i] = time("commit", "bench " + i);
+                samples[2][i] = time("status");
+                samples[3][i] = time("log");
+                samples[4][i] = time("find", "bench " + (i / 2));
+                samples[5][i] = time("global-log");
+                String head = lastLine(captured("find", "bench " + i));
+                String old = lastLine(captured("find", "bench " + (i / 2)));
+                samples[6][i] = time("checkout", old, "--", f);
+                time("checkout", "--", f);
+                samples[7][i] = time("reset", old);
+                time("reset", head);
+                samples[8][i] = time("switch", "b1");
+                time("switch", "master");
+                samples[9][i] = time("branch", "x" + i);
+                String g = "g" + (i % files) + ".txt";
+                time("switch", "x" + i);
+                writeContents(Utils.join(cwd, g), "merge " + i);
+                time("add", g);
+                time("commit", "side " + i);
+                time("switch", "master");
+                samples[10][i] = time("merge", "x" + i);
+            }
+            System.setOut(out);
+            String[] names = {"add", "commit", "status", "log", "find",
+                "global-log", "checkout", "reset", "switch", "branch",
+                "merge"};
+            for (int k = 0; k < names.length; k += 1) {
+                record("repo-" + names[k], samples[k], "");
+            }
+        } finally {
+            System.setOut(out);
+            for (File f : Objects.requireNonNull(cwd.listFiles())) {
+                delete(f);
+            }
+        }
+    }
+
+    /** Names of the commands timed by startup, in the order of the
+     *  samples suite takes. */
+    private static final String[] SUITE = {"none", "init", "add", "rm",
+        "commit", "log", "global-log", "find", "diff", "status", "checkout",
+        "switch", "branch", "rm-branch", "reset", "merge", "pack"};
+
+    /** Options that make a JVM start fast with class-data-sharing archive
+     *  ARCHIVE, as the fast-start target of the Makefile runs commitra. */
+    static List<String> fastStart(String archive) {
+        return List.of("-XX:SharedArchiveFile=" + archive,
+                "-XX:TieredStopAtLevel=1", "-XX:+UseSerialGC");
+    }
+
+    /** Builds a repository in the current directory, which must be empty,
+     *  with FILES files of 1 KB and COMMITS commits on two branches, and
+     *  times every command ITERATIONS times, each in a new JVM, from
+     *  starting it until it exits.  "none" is Main run with no command,
+     *  the cost of starting the JVM alone.  If ARCHIVE is not null, each
+     *  command is also timed in a JVM started with fastStart(ARCHIVE). */
+    static void startup(int files, int commits, int iterations,
+                        String archive) {
+        File cwd = emptyDirectory("startup");
+        if (cwd == null) {
+            return;
+        }
+        Random random = new Random(SEED);
+        PrintStream out = System.out;
+        int configs = archive == null ? 1 : 2;
+        long[][] samples = new long[configs * SUITE.length][iterations];
+        try {
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            generate(cwd, random, files, 1024, commits, 2, 10);
+            for (int i = 0; i < iterations; i += 1) {
+                for (int c = 0; c < configs; c += 1) {
+                    List<String> options = c == 0 ? List.of()
+                        : fastStart(archive);
+                    long[] times = suite(cwd, random, files,
+                            configs * i + c, args -> launch(cwd, options,
+                                    args));
+                    for (int k = 0; k < SUITE.length; k += 1) {
+                        samples[c * SUITE.length + k][i] = times[k];
+                    }
+                }
+            }
+            System.setOut(out);
+            String detail = String.format("files=%d commits=%d", files,
+                    commits);
+            for (int c = 0; c < configs; c += 1) {
+                for (int k = 0; k < SUITE.length; k += 1) {
+                    record((c == 0 ? "startup-" : "startup-cds-")
+                            + SUITE[k], samples[c * SUITE.length + k],
+                            detail);
+                }
+            }
+        } finally {
+            System.setOut(out);
+            for (File f : Objects.requireNonNull(cwd.listFiles())) {
+                delete(f);
+            }
+        }
+    }
+
+    /** Builds a small repository in the current directory, which must be
+     *  empty, runs every command on it once in this JVM and deletes it
+     *  again.  This is the training run from which the Makefile's
+     *  fast-start target records the classes that commands load. */
+    static void train() {
+        File cwd = emptyDirectory("train");
+        if (cwd == null) {
+            return;
+        }
+        Random random = new Random(SEED);
+        PrintStream out = System.out;
+        try {
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            generate(cwd, random, 20, 1024, 10, 2, 5);
+            suite(cwd, random, 20, 0, Benchmarks::time);
+            suite(cwd, random, 20, 1, Benchmarks::time);
+        } finally {
+            System.setOut(out);
+            for (File f : Objects.requireNonNull(cwd.listFiles())) {
+                delete(f);
+            }
+        }
+        System.out.println("Trained on every command.");
+    }
+
+    /** Runs each command of SUITE once, the Ith time, on the repository
+     *  in CWD, which has FILES files, through RUNNER, and returns the
+     *  times RUNNER gives for each. */
+    private static long[] suite(File cwd, Random random, int files, int i,
+                                Runner runner) {
+        String f = "f" + (i % files) + ".txt";
+        String g = "f" + ((i + 1) % files) + ".txt";
+        edit(cwd, f, random, 1024);
+        long[] times = new long[SUITE.length];
+        times[0] = runner.run();
+        times[1] = runner.run("init");
+        times[8] = runner.run("diff");
+        times[2] = runner.run("add", f);
+        times[3] = runner.run("rm", g);
+        times[4] = runner.run("commit", "startup " + i);
+        times[5] = runner.run("log");
+        times[6] = runner.run("global-log");
+        times[7] = runner.run("find", "startup " + i);
+        times[9] = runner.run("status");
+        times[10] = runner.run("checkout", "--", f);
+        times[11] = runner.run("switch", "b1");
+        runner.run("switch", "master");
+        times[12] = runner.run("branch", "s" + i);
+        times[13] = runner.run("rm-branch", "s" + i);
+        String head = lastLine(captured("find", "startup " + i));
+        times[14] = runner.run("reset", head);
+        times[15] = runner.run("merge", "b1");
+        times[16] = runner.run("pack");
+        return times;
+    }
+
+    /** Runs a command and returns how long it took, in nanoseconds.
+     */
+    private interface Runner {
+        long run(String... args);
+    }
+
+    /** Returns the current directory if it is empty, and otherwise says
+     *  that BENCHMARK must be run in one and returns null. */
+    private static File emptyDirectory(String benchmark) {
+        File cwd = new File(System.getProperty("user.dir"));
+        String[] existing = cwd.list();
+        if (existing == null || existing.length != 0) {
+            System.out.println("Run the " + benchmark
+                    + " benchmark in an empty directory.");
+            return null;
+        }
+        return cwd;
+    }
+
+    /** Runs the command ARGS in a new JVM in directory CWD, with this
+     *  JVM's class path and OPTIONS, and returns the time until it exits
+     *  in nanoseconds. */
+    private static long launch(File cwd, List<String> options,
+                               String... args) {
+        List<String> command = new ArrayList<>();
+        command.add(Utils.join(new File(System.getProperty("java.home")),
+                "bin", "java").getPath());
+        command.addAll(options);
+        command.addAll(List.of("-cp", System.getProperty("java.class.path"),
+                "commitra.Main"));
+        command.addAll(Arrays.asList(args));
+        ProcessBuilder builder = new ProcessBuilder(command)
+                .directory(cwd)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.DISCARD);
+        long start = System.nanoTime();
+        try {
+            builder.start().waitFor();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+            throw new IllegalArgumentException(excp);
+        }
+        return System.nanoTime() - start;
+    }
+
+    /** Fills CWD with a repository as described for repo. */
+    private static void generate(File cwd, Random random, int files,
+                                 int fileSize, int commits, int branches,
+                                 int mergeEvery) {
+        run("init");
+        for (int i = 0; i < files; i += 1) {
+            String f = "f" + i + ".txt";
+            edit(cwd, f, random, fileSize);
+            run("add", f);
+        }
+        run("commit", "generated files");
+        for (int b = 1; b < branches; b += 1) {
+            run("branch", "b" + b);
+        }
+        String current = "master";
+        for (int c = 0; c < commits; c += 1) {
+            int b = random.nextInt(branches);
+            String branch = b == 0 ? "master" : "b" + b;
+            if (!branch.equals(current)) {
+                run("switch", branch);
+                current = branch;
+            }
+            int n = b + branches * random.nextInt(
+                    Math.max(1, (files - b + branches - 1) / branches));
+            String f = "f" + Math.min(n, files - 1) + ".txt";
+            edit(cwd, f, random, fileSize);
+            run("add", f);
+            run("commit", "generated " + c);
+            if (mergeEvery > 0 && c % mergeEvery == mergeEvery - 1) {
+                int other = (b + 1 + random.nextInt(branches - 1)) % branches;
+                run("merge", other == 0 ? "master" : "b" + other);
+            }
+        }
+        if (!current.equals("master")) {
+            run("switch", "master");
+        }
+    }
+
+    /** Overwrites file NAME in CWD with about SIZE bytes of random lines. */
+    private static void edit(File cwd, String name, Random random, int size) {
+        StringBuilder text = new StringBuilder(size + 64);
+        while (text.length() < size) {
+            text.append(Long.toHexString(random.nextLong())).append('\n');
+        }
+        writeContents(Utils.join(cwd, name), text.toString());
+    }
+
+    /** Runs the command ARGS through Main.main and returns its duration
+     *  in nanoseconds. */
+    private static long time(String... args) {
+        long start = System.nanoTime();
+        run(args);
+        return System.nanoTime() - start;
+    }
+
+    /** Runs the command ARGS and returns what it printed. */
+    private static String captured(String... args) {
+        PrintStream old = System.out;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(bytes));
+        try {
+            run(args);
+        } finally {
+            System.setOut(old);
+        }
+        return bytes.toString();
+    }
+
+    /** Runs the command ARGS as Main would. */
+    private static void run(String... args) {
+        try {
+            Main.main(args);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private static String lastLine(String text) {
+        String[] lines = text.trim().split("\n");
+        return lines[lines.length - 1];
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /** Returns an in-memory graph of COMMITS commits on BRANCHES branches,
+     *  with a merge every MERGEEVERY commits, drawing choices from RANDOM.
+     *  The final branch tips are added to TIPS. */
+    static CommitGraph syntheticGraph(int commits, int mergeEvery,
+                                      int branches, Random random,
+                                      List<String> tips) {
+        CommitGraph graph = new CommitGraph(null);
+        String root = Utils.sha1("root");
+        graph.add(root, "", "", 0);
+        for (int i = 0; i < branches; i += 1) {
+            tips.add(root);
+        }
+        for (int i = 1; i < commits; i += 1) {
+            int b = random.nextInt(branches);
+            String id = Utils.sha1(Integer.toString(i));
+            String parent2 = "";
+            if (mergeEvery > 0 && i % mergeEvery == 0) {
+                parent2 = tips.get(random.nextInt(branches));
+                if (parent2.equals(tips.get(b))) {
+                    parent2 = "";
+                }
+            }
+            graph.add(id, tips.get(b), parent2, i * 1000L);
+            tips.set(b, id);
+        }
+        return graph;
+    }
+
+    /** Prints and records the result of benchmark NAME, which ran OPS
+     *  operations in NANOS nanoseconds, followed by DETAIL. */
+    static void report(String name, int ops, long nanos, String detail) {
+        System.out.printf("%-16s %10.3f us/op  %s%n", name,
+                nanos / 1000.0 / ops, detail);
+        RESULTS.add(String.format("{\"name\": \"%s\", \"ops\": %d, "
+                + "\"meanUs\": %.3f, \"detail\": \"%s\"}",
+                name, ops, nanos / 1000.0 / ops, detail));
+    }
+
+    /** Prints and records the result of benchmark NAME, whose operations
+     *  took SAMPLES nanoseconds each, followed by DETAIL. */
+    static void record(String name, long[] samples, String detail) {
+        long[] sorted = samples.clone();
+        Arrays.sort(sorted);
+        long total = 0;
+        for (long sample : sorted) {
+            total += sample;
+        }
+        double mean = total / 1000.0 / sorted.length;
+        double min = sorted[0] / 1000.0;
+        double median = sorted[sorted.length / 2] / 1000.0;
+        double max = sorted[sorted.length - 1] / 1000.0;
+        System.out.printf("%-16s %10.3f us/op  min=%.3f median=%.3f "
+                + "max=%.3f %s%n", name, mean, min, median, max, detail);
+        RESULTS.add(String.format("{\"name\": \"%s\", \"ops\": %d, "
+                + "\"meanUs\": %.3f, \"minUs\": %.3f, \"medianUs\": %.3f, "
+                + "\"maxUs\": %.3f, \"detail\": \"%s\"}", name,
+                sorted.length, mean, min, median, max, detail));
+    }
+
+    private static int intArg(String[] args, int index, int dflt) {
+        return args.length > index ? Integer.parseInt(args[index]) : dflt;
+    }
+}
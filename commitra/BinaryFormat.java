@@ -0,0 +1,312 @@
+package commitra;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/** Compact, versioned binary encoding of Commit, MergeCommit, Branch and
+ *  StagingArea, used in place of Java serialization.  Every record starts
+ *  with a four-byte magic number whose last byte is the format version.
+ *  Strings are a four-byte length and UTF-8 bytes; ids are 20 raw bytes,
+ *  all zeros for none.
+ *
+ *  A commit is MAGIC_COMMIT, a kind byte (COMMIT or MERGE), its id, its
+ *  parent, its second parent if a merge, its root tree, and its
+ *  timestamp and message.  Version 1 commits had the file map as a count
+ *  and (name, id) pairs in place of the root tree, after the message.
+ *  A branch is MAGIC_BRANCH, its name, and its last commit as a length
+ *  and an encoded commit.  A staging area is MAGIC_STAGE, its generation
+ *  as a long, and its entries as a count and (state byte, name, id)
+ *  triples, the id being zeros for entries without a blob.  Version 1
+ *  staging areas held the files to add as a count and (name, id) pairs
+ *  and then the files to remove as a count and names.
+ */
+class BinaryFormat {
+
+    /** Magic number of a commit, "CMT" and version 2. */
+    static final int MAGIC_COMMIT = 0x434d5402;
+
+    /** Magic number of a version 1 commit, which held its file map. */
+    static final int MAGIC_COMMIT_V1 = 0x434d5401;
+
+    /** Magic number of a branch, "BRN" and version 1. */
+    static final int MAGIC_BRANCH = 0x42524e01;
+
+    /** Magic number of a staging area, "STG" and version 2. */
+    static final int MAGIC_STAGE = 0x53544702;
+
+    /** Magic number of a version 1 staging area, which held separate
+     *  lists of files to add and to remove. */
+    static final int MAGIC_STAGE_V1 = 0x53544701;
+
+    /** First two bytes of a Java serialization stream. */
+    static final int JAVA_MAGIC = 0xaced;
+
+    /** Kind byte of an ordinary commit. */
+    private static final int COMMIT = 0;
+
+    /** Kind byte of a merge commit. */
+    private static final int MERGE = 1;
+
+    /** Pathname to the file recording the repository's format version.
+     */
+    static final File FORMAT = new File(Reposotiry.COMMITRA
+            + File.separator + "format");
+
+    /** Current format version of the repository. */
+    static final String VERSION = "2";
+
+    /** Returns true iff OBJ has a binary encoding. */
+    static boolean encodes(Serializable obj) {
+        return obj instanceof Commit || obj instanceof Branch
+                || obj instanceof StagingArea;
+    }
+
+    /** Returns the binary encoding of OBJ, a Commit, Branch or
+     *  StagingArea. */
+    static byte[] encode(Serializable obj) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            if (obj instanceof Commit) {
+                writeCommit(out, (Commit) obj);
+            } else if (obj instanceof Branch) {
+                writeBranch(out, (Branch) obj);
+            } else if (obj instanceof StagingArea) {
+                writeStage(out, (StagingArea) obj);
+            } else {
+                throw new IllegalArgumentException("no binary format for "
+                        + obj.getClass().getName());
+            }
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Returns the object encoded in CONTENTS, cast to EXPECTEDCLASS. */
+    static <T extends Serializable> T decode(byte[] contents,
+                                            Class<T> expectedClass) {
+        try {
+            DataInputStream in = new DataInputStream(
+                    new ByteArrayInputStream(contents));
+            int magic = in.readInt();
+            Object result;
+            if (magic == MAGIC_COMMIT || magic == MAGIC_COMMIT_V1) {
+                result = readCommit(in, magic, false);
+            } else if (magic == MAGIC_BRANCH) {
+                result = readBranch(in);
+            } else if (magic == MAGIC_STAGE || magic == MAGIC_STAGE_V1) {
+                result = readStage(in, magic);
+            } else {
+                throw new IllegalArgumentException("unknown record format");
+            }
+            return expectedClass.cast(result);
+        } catch (IOException | ClassCastException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Returns the commit stored in FILE, reading no further than its
+     *  message.  A version 1 commit read this way has getObjects() null.
+     *  FILE must be in binary format. */
+    static Commit readHeader(File file) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(file.toPath()), 512))) {
+            int magic = in.readInt();
+            if (magic != MAGIC_COMMIT && magic != MAGIC_COMMIT_V1) {
+                throw new IllegalArgumentException("not a binary commit");
+            }
+            return readCommit(in, magic, true);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Returns true iff FILE starts with a Java serialization header or
+     *  is a version 1 commit. */
+    static boolean isLegacy(File file) {
+        try (DataInputStream in = new DataInputStream(
+                Files.newInputStream(file.toPath()))) {
+            int magic = in.readInt();
+            return (magic >>> 16) == JAVA_MAGIC || magic == MAGIC_COMMIT_V1;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Rewrites every Java-serialized or version 1 commit, branch and
+     *  staging area of the current repository in the current format,
+     *  writing the trees of older commits, unless the repository is
+     *  already marked as being at the current version. */
+    static void upgrade() {
+        if (FORMAT.exists()
+                && Utils.readContentsAsString(FORMAT).equals(VERSION)) {
+            return;
+        }
+        convertAll(Reposotiry.COMMITS, Commit.class);
+        convertAll(Reposotiry.BRANCHES, Branch.class);
+        convert(Reposotiry.STAGING_AREA, StagingArea.class);
+        Utils.writeContents(FORMAT, VERSION);
+    }
+
+    private static <T extends Serializable> void convertAll(
+            File dir, Class<T> type) {
+        List<String> files = Utils.plainFilenamesIn(dir);
+        if (files != null) {
+            for (String name : files) {
+                convert(Utils.join(dir, name), type);
+            }
+        }
+    }
+
+    private static <T extends Serializable> void convert(File file,
+                                                         Class<T> type) {
+        if (file.isFile() && isLegacy(file)) {
+            Utils.writeObject(file, Utils.readObject(file, type));
+        }
+    }
+
+    private static void writeCommit(DataOutputStream out, Commit commit)
+            throws IOException {
+        boolean merge = commit instanceof MergeCommit;
+        out.writeInt(MAGIC_COMMIT);
+        out.writeByte(merge ? MERGE : COMMIT);
+        out.write(CommitGraph.toBytes(commit.getOwnID()));
+        out.write(CommitGraph.toBytes(commit.getParentID()));
+        if (merge) {
+            out.write(CommitGraph.toBytes(((MergeCommit) commit).getParent2()));
+        }
+        out.write(CommitGraph.toBytes(commit.getTree()));
+        writeString(out, commit.getTimeStamp());
+        writeString(out, commit.getMsg());
+    }
+
+    /** Reads a commit with magic number MAGIC from IN, skipping the file
+     *  map of a version 1 commit if HEADERONLY. */
+    private static Commit readCommit(DataInputStream in, int magic,
+                                     boolean headerOnly)
+            throws IOException {
+        int kind = in.readByte();
+        String id = readId(in);
+        String parent = readId(in);
+        String parent2 = kind == MERGE ? readId(in) : null;
+        String tree = magic == MAGIC_COMMIT ? readId(in) : null;
+        String timestamp = readString(in);
+        String message = readString(in);
+        Commit commit;
+        if (tree != null) {
+            commit = kind == MERGE
+                    ? new MergeCommit(message, parent, parent2, tree, timestamp)
+                    : new Commit(message, parent, tree, timestamp);
+        } else {
+            TreeMap<String, String> files = headerOnly ? null : readFiles(in);
+            commit = kind == MERGE
+                    ? new MergeCommit(message, parent, parent2, files,
+                            timestamp)
+                    : new Commit(message, parent, files, timestamp);
+        }
+        commit.changeOwnID(id);
+        return commit;
+    }
+
+    private static void writeBranch(DataOutputStream out, Branch branch)
+            throws IOException {
+        out.writeInt(MAGIC_BRANCH);
+        writeString(out, branch.getName());
+        byte[] commit = encode(branch.getLastCommit());
+        out.writeInt(commit.length);
+        out.write(commit);
+    }
+
+    private static Branch readBranch(DataInputStream in) throws IOException {
+        String name = readString(in);
+        byte[] commit = new byte[in.readInt()];
+        in.readFully(commit);
+        return new Branch(name, decode(commit, Commit.class));
+    }
+
+    private static void writeStage(DataOutputStream out, StagingArea stage)
+            throws IOException {
+        out.writeInt(MAGIC_STAGE);
+        out.writeLong(stage.generation());
+        out.writeInt(stage.entries().size());
+        for (Map.Entry<String, StagingArea.Entry> e
+                : stage.entries().entrySet()) {
+            StagingArea.Entry entry = e.getValue();
+            out.writeByte(entry.state.ordinal());
+            writeString(out, e.getKey());
+            out.write(CommitGraph.toBytes(
+                    entry.hash == null ? "" : entry.hash));
+        }
+    }
+
+    private static StagingArea readStage(DataInputStream in, int magic)
+            throws IOException {
+        TreeMap<String, StagingArea.Entry> entries = new TreeMap<>();
+        long generation = 0;
+        if (magic == MAGIC_STAGE_V1) {
+            for (Map.Entry<String, String> e : readFiles(in).entrySet()) {
+                entries.put(e.getKey(), new StagingArea.Entry(
+                        StagingArea.State.ADD, e.getValue()));
+            }
+            for (int n = in.readInt(); n > 0; n -= 1) {
+                entries.put(readString(in), new StagingArea.Entry(
+                        StagingArea.State.REMOVE, null));
+            }
+        } else {
+            generation = in.readLong();
+            for (int n = in.readInt(); n > 0; n -= 1) {
+                StagingArea.State state =
+                        StagingArea.State.values()[in.readByte()];
+                String name = readString(in);
+                String id = readId(in);
+                entries.put(name, new StagingArea.Entry(state,
+                        id.isEmpty() ? null : id));
+            }
+        }
+        StagingArea stage = new StagingArea();
+        stage.restore(entries, generation);
+        return stage;
+    }
+
+    private static TreeMap<String, String> readFiles(DataInputStream in)
+            throws IOException {
+        TreeMap<String, String> files = new TreeMap<>();
+        for (int n = in.readInt(); n > 0; n -= 1) {
+            String name = readString(in);
+            files.put(name, readId(in));
+        }
+        return files;
+    }
+
+    private static void writeString(DataOutputStream out, String s)
+            throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String readId(DataInputStream in) throws IOException {
+        byte[] id = new byte[ObjectId.LENGTH];
+        in.readFully(id);
+        return CommitGraph.toHex(id);
+    }
+}
@@ -7,6 +7,10 @@ import java.io.Serializable;
  */
 public class Branch implements Serializable {
 
+    /** Fixed so that older serialized branches can still be read.
+     */
+    private static final long serialVersionUID = -6345328087377468657L;
+
     /** Contains the name of the branch.
      */
     private String _name;
@@ -5,7 +5,12 @@ import java.util.TreeMap;
 
 import static commitra.Utils.sha1;
 
-public class Commit implements Serializable {
+public class Commit implements Serializable, Cloneable {
+
+    /** Fixed so that commits written by Java serialization before the
+     *  binary format can still be read and converted.
+     */
+    private static final long serialVersionUID = -2173140085554800548L;
 
     /** Hash of the current commit.
      */
@@ -26,18 +31,29 @@ public class Commit implements Serializable {
     /** Contains blobs as
      *  filename and hash.
      *  Hash being the pathname to
-     *  the blob.
+     *  the blob.  Read from the root tree on first use.
      */
     private TreeMap<String, String> _objects;
 
-    public Commit(String msg, String pID,
-                  TreeMap<String, String> objects, String date) {
+    /** Hash of the root tree.
+     */
+    private String _tree;
+
+    public Commit(String msg, String pID, String tree, String date) {
         this._timeStamp = date;
         this._parentID = pID;
         this._message = msg;
         this._ownID = sha1(msg, pID, this._timeStamp);
-        this._objects = objects;
+        this._tree = tree;
+
+    }
 
+    /** A commit of older repositories, which held OBJECTS itself rather
+     *  than a root tree. */
+    Commit(String msg, String pID,
+           TreeMap<String, String> objects, String date) {
+        this(msg, pID, (String) null, date);
+        this._objects = objects;
     }
 
     public String getOwnID() {
@@ -57,9 +73,35 @@ public class Commit implements Serializable {
     }
 
     public TreeMap<String, String> getObjects() {
+        if (this._objects == null && this._tree != null) {
+            this._objects = Tree.files(ObjectStore.current(), this._tree);
+        }
         return this._objects;
     }
 
+    /** Returns the hash of the root tree, first writing the trees of a
+     *  commit from an older repository. */
+    public String getTree() {
+        if (this._tree == null) {
+            this._tree = Tree.write(ObjectStore.current(), this._objects);
+        }
+        return this._tree;
+    }
+
+    /** Returns a copy of this commit without the files read from its root
+     *  tree, which the copy reads again on first use. */
+    Commit withoutFiles() {
+        try {
+            Commit copy = (Commit) super.clone();
+            if (copy._tree != null) {
+                copy._objects = null;
+            }
+            return copy;
+        } catch (CloneNotSupportedException excp) {
+            throw new AssertionError(excp);
+        }
+    }
+
     public void changeOwnID(String hash) {
         this._ownID = hash;
     }
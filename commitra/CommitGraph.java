@@ -0,0 +1,358 @@
+package commitra;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+/** An append-only index of the commit graph.  Every commit has one
+ *  fixed-size record holding its id, its parents, its generation number
+ *  and its commit time, so history walks never need to deserialize a
+ *  Commit just to find its parents.
+ */
+class CommitGraph {
+
+    /** Pathname to the commit-graph file.
+     */
+    static final File GRAPH = new File(Reposotiry.COMMITRA
+            + File.separator + "commit-graph");
+
+    /** Number of bytes in a binary commit id.
+     */
+    static final int ID_BYTES = ObjectId.LENGTH;
+
+    /** Size of one record: id, parent, second parent, generation, time.
+     */
+    static final int RECORD_SIZE = 3 * ID_BYTES + 4 + 8;
+
+    /** Number of records read at a time when scanning the file.
+     */
+    private static final int SCAN = 256;
+
+    /** One commit in the graph.
+     */
+    static class Node {
+
+        /** Hash of this commit.
+         */
+        final String id;
+
+        /** Hash of the first parent, or "" for a root commit.
+         */
+        final String parent;
+
+        /** Hash of the second parent, or "" if this is not a merge.
+         */
+        final String parent2;
+
+        /** One more than the largest generation of the parents,
+         *  root commits having generation 1.
+         */
+        final int generation;
+
+        /** Commit time in milliseconds since the epoch.
+         */
+        final long time;
+
+        Node(String id, String parent, String parent2,
+             int generation, long time) {
+            this.id = id;
+            this.parent = parent;
+            this.parent2 = parent2;
+            this.generation = generation;
+            this.time = time;
+        }
+
+        boolean hasParent() {
+            return !parent.isEmpty();
+        }
+
+        boolean isMerge() {
+            return !parent2.isEmpty();
+        }
+    }
+
+    /** All commits in the graph, keyed by id.
+     */
+    private final HashMap<String, Node> _nodes = new HashMap<>();
+
+    /** File new records are appended to, or null for an in-memory graph.
+     */
+    private final File _file;
+
+    /** An empty graph that is persisted to FILE, or kept only in memory
+     *  if FILE is null. */
+    CommitGraph(File file) {
+        this._file = file;
+    }
+
+    /** Returns the graph of the current repository, rebuilding it from
+     *  the commits directory if the repository predates the graph file. */
+    static CommitGraph load() {
+        CommitGraph graph = new CommitGraph(GRAPH);
+        if (GRAPH.exists()) {
+            graph.read();
+        } else {
+            graph.rebuild();
+        }
+        return graph;
+    }
+
+    /** Returns the node for commit ID, or null if it is not in the graph. */
+    Node get(String id) {
+        return _nodes.get(id);
+    }
+
+    boolean contains(String id) {
+        return _nodes.containsKey(id);
+    }
+
+    int size() {
+        return _nodes.size();
+    }
+
+    Collection<Node> nodes() {
+        return _nodes.values();
+    }
+
+    /** Returns the parents of ID, first parent first. */
+    List<String> parents(String id) {
+        List<String> result = new ArrayList<>(2);
+        Node node = _nodes.get(id);
+        if (node != null) {
+            if (node.hasParent()) {
+                result.add(node.parent);
+            }
+            if (node.isMerge()) {
+                result.add(node.parent2);
+            }
+        }
+        return result;
+    }
+
+    /** Records COMMIT in the graph and appends it to the graph file.
+     *  Returns its node. */
+    Node add(Commit commit) {
+        String parent2 = commit instanceof MergeCommit
+                ? ((MergeCommit) commit).getParent2() : "";
+        return add(commit.getOwnID(), commit.getParentID(), parent2,
+                parseTime(commit.getTimeStamp()));
+    }
+
+    /** Records a commit ID with parents PARENT and PARENT2 ("" when
+     *  absent) made at TIME.  Both parents must already be in the graph.
+     *  Returns its node. */
+    Node add(String id, String parent, String parent2, long time) {
+        Node existing = _nodes.get(id);
+        if (existing != null) {
+            return existing;
+        }
+        int generation =
+                Math.max(generation(parent), generation(parent2)) + 1;
+        Node node = new Node(id, parent, parent2, generation, time);
+        _nodes.put(id, node);
+        if (_file != null) {
+            append(_file, node);
+        }
+        return node;
+    }
+
+    /** Appends COMMIT, which must be newly written, to the graph file of
+     *  the current repository without reading the whole graph.  The
+     *  generations of its parents are looked up scanning back from the
+     *  end of the file, where a new commit's parents usually are, and
+     *  nothing is written if the scan meets COMMIT itself first.  If the
+     *  repository has no graph file yet, it is built from the commits,
+     *  COMMIT included. */
+    static void append(Commit commit) {
+        if (!GRAPH.exists()) {
+            load();
+            return;
+        }
+        String parent2 = commit instanceof MergeCommit
+                ? ((MergeCommit) commit).getParent2() : "";
+        byte[][] wanted = {toBytes(commit.getOwnID()),
+            toBytes(commit.getParentID()), toBytes(parent2)};
+        int[] generations = new int[wanted.length];
+        int missing = 0;
+        for (int i = 1; i < wanted.length; i += 1) {
+            if (!toHex(wanted[i]).isEmpty()) {
+                missing += 1;
+            }
+        }
+        try (FileChannel channel = FileChannel.open(GRAPH.toPath(),
+                StandardOpenOption.READ)) {
+            ByteBuffer chunk = ByteBuffer.allocate(SCAN * RECORD_SIZE);
+            byte[] id = new byte[ID_BYTES];
+            long end = channel.size() / RECORD_SIZE;
+            while (missing > 0 && end > 0) {
+                long start = Math.max(0, end - SCAN);
+                chunk.clear().limit((int) (end - start) * RECORD_SIZE);
+                while (chunk.hasRemaining() && channel.read(chunk,
+                        start * RECORD_SIZE + chunk.position()) > 0) {
+                    continue;
+                }
+                for (int r = (int) (end - start) - 1; r >= 0; r -= 1) {
+                    chunk.get(r * RECORD_SIZE, id);
+                    if (Arrays.equals(id, wanted[0])) {
+                        return;
+                    }
+                    for (int i = 1; i < wanted.length; i += 1) {
+                        if (generations[i] == 0
+                                && Arrays.equals(id, wanted[i])) {
+                            generations[i] = chunk.getInt(
+                                    r * RECORD_SIZE + 3 * ID_BYTES);
+                            missing -= 1;
+                        }
+                    }
+                }
+                end = start;
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        append(GRAPH, new Node(commit.getOwnID(), commit.getParentID(),
+                parent2, Math.max(generations[1], generations[2]) + 1,
+                parseTime(commit.getTimeStamp())));
+    }
+
+    /** Returns the generation of ID, or 0 if ID is "" or unknown. */
+    int generation(String id) {
+        Node node = id.isEmpty() ? null : _nodes.get(id);
+        return node == null ? 0 : node.generation;
+    }
+
+    /** Returns TIMESTAMP, formatted as in Commit, in milliseconds since
+     *  the epoch, or 0 if it cannot be parsed. */
+    static long parseTime(String timestamp) {
+        try {
+            return new SimpleDateFormat("EEE MMM dd HH:mm:ss yyyy Z")
+                    .parse(timestamp).getTime();
+        } catch (ParseException excp) {
+            return 0;
+        }
+    }
+
+    /** Reads every complete record of the graph file.  A record torn by
+     *  an interrupted append is ignored. */
+    private void read() {
+        long records = _file.length() / RECORD_SIZE;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(_file.toPath())))) {
+            byte[] id = new byte[ID_BYTES];
+            for (long i = 0; i < records; i += 1) {
+                in.readFully(id);
+                String own = toHex(id);
+                in.readFully(id);
+                String parent = toHex(id);
+                in.readFully(id);
+                String parent2 = toHex(id);
+                int generation = in.readInt();
+                long time = in.readLong();
+                _nodes.put(own, new Node(own, parent, parent2,
+                        generation, time));
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Builds the graph from the commit headers, parents before
+     *  children, and writes it out. */
+    private void rebuild() {
+        List<String> files = Utils.plainFilenamesIn(Reposotiry.COMMITS);
+        if (files == null) {
+            return;
+        }
+        for (String file : files) {
+            String id = file.substring(0, file.length() - ".txt".length());
+            ArrayDeque<Commit> stack = new ArrayDeque<>();
+            stack.push(readCommit(id));
+            while (!stack.isEmpty()) {
+                Commit top = stack.peek();
+                if (_nodes.containsKey(top.getOwnID())) {
+                    stack.pop();
+                    continue;
+                }
+                boolean ready = true;
+                for (String p : parentsOf(top)) {
+                    if (!_nodes.containsKey(p)) {
+                        stack.push(readCommit(p));
+                        ready = false;
+                    }
+                }
+                if (ready) {
+                    add(stack.pop());
+                }
+            }
+        }
+    }
+
+    private static List<String> parentsOf(Commit commit) {
+        List<String> result = new ArrayList<>(2);
+        if (!commit.getParentID().isEmpty()) {
+            result.add(commit.getParentID());
+        }
+        if (commit instanceof MergeCommit) {
+            result.add(((MergeCommit) commit).getParent2());
+        }
+        return result;
+    }
+
+    private static Commit readCommit(String id) {
+        return Reposotiry.readCommitHeader(id);
+    }
+
+    /** Appends NODE's record to graph file FILE, first cutting off any
+     *  record torn by an interrupted append, so that every record stays
+     *  at a multiple of RECORD_SIZE. */
+    private static void append(File file, Node node) {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        record.put(toBytes(node.id)).put(toBytes(node.parent))
+                .put(toBytes(node.parent2)).putInt(node.generation)
+                .putLong(node.time).flip();
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long end = channel.size() / RECORD_SIZE * RECORD_SIZE;
+            if (end != channel.size()) {
+                channel.truncate(end);
+            }
+            while (record.hasRemaining()) {
+                channel.write(record, end + record.position());
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        Durability.written(file);
+    }
+
+    /** Returns the 20-byte form of hex id ID, all zeros for "". */
+    static byte[] toBytes(String id) {
+        if (id.isEmpty()) {
+            return new byte[ID_BYTES];
+        }
+        return ObjectId.fromHex(id).toBytes();
+    }
+
+    /** Returns the hex form of binary id ID, "" if it is all zeros. */
+    static String toHex(byte[] id) {
+        for (byte b : id) {
+            if (b != 0) {
+                return Utils.toHex(id);
+            }
+        }
+        return "";
+    }
+}
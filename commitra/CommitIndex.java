@@ -0,0 +1,219 @@
+package commitra;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Resolves abbreviated commit ids.  The ids of all commits are kept in
+ *  the commit-ids file as one sorted table of 20-byte ids, which is
+ *  memory-mapped and binary-searched, so a lookup reads a few pages
+ *  however many commits there are.  The table records how many commit
+ *  graph records it covers; commits added since are found by scanning
+ *  the rest of the graph file, and once there are more than REBUILD of
+ *  them the table is sorted again.
+ *
+ *  The file is MAGIC, the number of graph records covered, the number
+ *  of ids, and the ids in increasing order.
+ */
+class CommitIndex {
+
+    /** Pathname to the sorted id table.
+     */
+    static final File IDS = new File(Reposotiry.COMMITRA
+            + File.separator + "commit-ids");
+
+    /** First four bytes of the table, "CID" and version 1. */
+    static final int MAGIC = 0x43494401;
+
+    /** Size of the table header. */
+    private static final int HEADER = 12;
+
+    /** Shortest abbreviation accepted. */
+    static final int MIN_PREFIX = 4;
+
+    /** Most unsorted commits searched before the table is rebuilt. */
+    private static final int REBUILD = 1024;
+
+    /** Length of a hex commit id. */
+    private static final int HEX_LENGTH = 2 * ObjectId.LENGTH;
+
+    /** The sorted table.
+     */
+    private final File _ids;
+
+    /** The commit graph whose ids are indexed.
+     */
+    private final File _graph;
+
+    /** The table of the repository in the current directory. */
+    CommitIndex() {
+        this(IDS, CommitGraph.GRAPH);
+    }
+
+    /** The table IDS of the ids in commit graph file GRAPH. */
+    CommitIndex(File ids, File graph) {
+        this._ids = ids;
+        this._graph = graph;
+    }
+
+    /** Returns true iff PREFIX can be looked up: at least MIN_PREFIX and
+     *  at most 40 hex digits. */
+    static boolean isValidPrefix(String prefix) {
+        return prefix.length() >= MIN_PREFIX
+                && prefix.length() <= HEX_LENGTH
+                && prefix.chars().allMatch(c -> Character.digit(c, 16) >= 0);
+    }
+
+    /** Returns true iff the next lookup in the table of the current
+     *  repository will rewrite it, having too many graph records to
+     *  scan past the end of it. */
+    static boolean isStale() {
+        long records = CommitGraph.GRAPH.length() / CommitGraph.RECORD_SIZE;
+        long covered = 0;
+        if (IDS.isFile()) {
+            try (FileChannel channel = FileChannel.open(IDS.toPath(),
+                    StandardOpenOption.READ)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER);
+                while (header.hasRemaining()
+                        && channel.read(header) > 0) {
+                    continue;
+                }
+                if (!header.hasRemaining() && header.getInt(0) == MAGIC) {
+                    covered = header.getInt(4) & 0xffffffffL;
+                }
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+        return records - covered > REBUILD;
+    }
+
+    /** Returns, in increasing order, the ids of up to LIMIT commits that
+     *  start with PREFIX, a valid prefix in either case. */
+    List<String> find(String prefix, int limit) {
+        prefix = prefix.toLowerCase();
+        long records = _graph.length() / CommitGraph.RECORD_SIZE;
+        List<String> result = new ArrayList<>();
+        long covered = 0;
+        if (_ids.isFile()) {
+            covered = search(prefix, limit, result);
+        }
+        if (records - covered > REBUILD) {
+            rebuild(records);
+            result.clear();
+            covered = search(prefix, limit, result);
+        }
+        if (covered < records) {
+            scanGraph(covered, records, prefix, result);
+            result.sort(null);
+            if (result.size() > limit) {
+                result.subList(limit, result.size()).clear();
+            }
+        }
+        return result;
+    }
+
+    /** Adds to RESULT the ids of up to LIMIT commits of the table that
+     *  start with PREFIX, and returns the number of graph records the
+     *  table covers. */
+    private long search(String prefix, int limit, List<String> result) {
+        try (FileChannel channel = FileChannel.open(_ids.toPath(),
+                StandardOpenOption.READ)) {
+            MappedByteBuffer table = channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (table.getInt(0) != MAGIC) {
+                return 0;
+            }
+            long covered = table.getInt(4) & 0xffffffffL;
+            int count = table.getInt(8);
+            byte[] low = ObjectId.fromHex(prefix
+                    + "0".repeat(HEX_LENGTH - prefix.length())).toBytes();
+            int lo = 0;
+            int hi = count;
+            byte[] id = new byte[ObjectId.LENGTH];
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                table.get(HEADER + mid * ObjectId.LENGTH, id);
+                if (Arrays.compareUnsigned(id, low) < 0) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            for (int i = lo; i < count && result.size() < limit; i += 1) {
+                table.get(HEADER + i * ObjectId.LENGTH, id);
+                String hex = Utils.toHex(id);
+                if (!hex.startsWith(prefix)) {
+                    break;
+                }
+                result.add(hex);
+            }
+            return covered;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Adds to RESULT the ids starting with PREFIX among graph records
+     *  [FROM, TO). */
+    private void scanGraph(long from, long to, String prefix,
+                           List<String> result) {
+        try (FileChannel channel = FileChannel.open(_graph.toPath(),
+                StandardOpenOption.READ)) {
+            ByteBuffer records = ByteBuffer.allocate(
+                    (int) (to - from) * CommitGraph.RECORD_SIZE);
+            long position = from * CommitGraph.RECORD_SIZE;
+            while (records.hasRemaining() && channel.read(records,
+                    position + records.position()) > 0) {
+                continue;
+            }
+            byte[] id = new byte[ObjectId.LENGTH];
+            for (int i = 0; i < to - from; i += 1) {
+                records.get(i * CommitGraph.RECORD_SIZE, id);
+                String hex = Utils.toHex(id);
+                if (hex.startsWith(prefix)) {
+                    result.add(hex);
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Rewrites the table with the ids of the first RECORDS records of
+     *  the graph, replacing the file atomically. */
+    void rebuild(long records) {
+        byte[][] ids = new byte[(int) records][];
+        try (FileChannel channel = FileChannel.open(_graph.toPath(),
+                StandardOpenOption.READ)) {
+            MappedByteBuffer graph = channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0,
+                    records * CommitGraph.RECORD_SIZE);
+            for (int i = 0; i < records; i += 1) {
+                ids[i] = new byte[ObjectId.LENGTH];
+                graph.get(i * CommitGraph.RECORD_SIZE, ids[i]);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        Arrays.sort(ids, Arrays::compareUnsigned);
+        ByteBuffer table = ByteBuffer.allocate(HEADER
+                + ids.length * ObjectId.LENGTH);
+        table.putInt(MAGIC).putInt((int) records).putInt(ids.length);
+        for (byte[] id : ids) {
+            table.put(id);
+        }
+        Durability.replace(_ids, table.array());
+    }
+
+    /** Sorts every commit of the graph into the table. */
+    void rebuild() {
+        rebuild(_graph.length() / CommitGraph.RECORD_SIZE);
+    }
+}
@@ -0,0 +1,311 @@
+package commitra;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/** A long-running process that keeps the repository in the current
+ *  directory open and runs commands for clients over a Unix domain
+ *  socket, so that scripts issuing many commands pay for neither JVM
+ *  startup nor cold caches on each one.  Started by "daemon", it serves
+ *  until killed; while its socket exists, Main hands every command run
+ *  in the repository to it and prints the output sent back.
+ *
+ *  A request is the arguments in UTF-8, each ended by a NUL byte, and
+ *  ends when the client shuts down its side of the connection; the
+ *  reply is the command's output, and the connection is then closed.
+ *  So any client will do, as in
+ *      printf '%s\0' status | nc -U .commitra/daemon.sock
+ *
+ *  Requests run on a pool of threads.  Commands that only read run
+ *  alongside each other and the others run alone, under the same
+ *  repository lock that commands run outside the daemon take, so the two
+ *  can be mixed freely.
+ *
+ *  HEAD, the refs and the staging area are read afresh for each command.
+ *  Decoded commits and trees are kept in their LRU caches, which never go
+ *  stale since both are immutable, and one stat cache is kept across
+ *  commands.  Before each command the stat cache file and the pack are
+ *  checked against what the daemon last saw, and the stat cache or the
+ *  object store is reloaded if another process has rewritten them.
+ */
+class Daemon {
+
+    /** Pathname to the socket.
+     */
+    static final File SOCKET = new File(Reposotiry.COMMITRA
+            + File.separator + "daemon.sock");
+
+    /** Output of the command each thread is running, or null for a
+     *  thread that is not running one. */
+    private static final ThreadLocal<OutputStream> OUTPUT =
+        new ThreadLocal<>();
+
+    /** Serializes commands that write, and lets those that read share.
+     */
+    private final ReentrantReadWriteLock _commands =
+        new ReentrantReadWriteLock(true);
+
+    /** Shared repository lock held on behalf of reading commands, and
+     *  their number. */
+    private RepoLock _shared;
+    private int _readers;
+
+    /** The stat cache kept across commands.
+     */
+    private StatCache _stat;
+
+    /** Stamps of the stat cache file and of the pack pointer when last
+     *  seen. */
+    private long[] _statStamp;
+    private long[] _packStamp;
+
+    /** Serves the repository in the current directory until killed. */
+    static void serve() throws IOException {
+        if (!Reposotiry.COMMITRA.isDirectory()) {
+            System.out.println("Not in an initialized Commitra directory.");
+            return;
+        }
+        if (SOCKET.exists()) {
+            if (running()) {
+                System.out.println("A daemon is already running.");
+                return;
+            }
+            SOCKET.delete();
+        }
+        Daemon daemon = new Daemon();
+        RepoLock lock = RepoLock.acquire(false);
+        try {
+            new Reposotiry().getGraph();
+            Durability.flush();
+            daemon.refresh();
+        } finally {
+            lock.close();
+        }
+        ServerSocketChannel server =
+            ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        server.bind(UnixDomainSocketAddress.of(SOCKET.toPath()));
+        Runtime.getRuntime().addShutdownHook(new Thread(SOCKET::delete));
+        System.setOut(new PrintStream(new Output(System.out), false,
+                StandardCharsets.UTF_8));
+        System.err.println("Serving " + SOCKET + ".");
+        ExecutorService pool =
+            Executors.newFixedThreadPool(2 * Parallel.threads());
+        while (true) {
+            SocketChannel client = server.accept();
+            pool.execute(() -> daemon.handle(client));
+        }
+    }
+
+    /** Runs ARGS on the daemon of the repository in the current directory,
+     *  if there is one, copying its output to the standard output, and
+     *  returns true; returns false if no daemon is running. */
+    static boolean forward(String... args) {
+        if (!SOCKET.exists()) {
+            return false;
+        }
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open(
+                    UnixDomainSocketAddress.of(SOCKET.toPath()));
+        } catch (IOException excp) {
+            return false;
+        }
+        try (channel) {
+            OutputStream out = new BufferedOutputStream(
+                    Channels.newOutputStream(channel));
+            for (String arg : args) {
+                out.write(arg.getBytes(StandardCharsets.UTF_8));
+                out.write(0);
+            }
+            out.flush();
+            channel.shutdownOutput();
+            Channels.newInputStream(channel).transferTo(System.out);
+            System.out.flush();
+            return true;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Returns true iff a daemon answers on SOCKET. */
+    private static boolean running() {
+        try {
+            SocketChannel.open(UnixDomainSocketAddress.of(SOCKET.toPath()))
+                .close();
+            return true;
+        } catch (IOException excp) {
+            return false;
+        }
+    }
+
+    /** Reads a command from CLIENT, runs it and writes its output back. */
+    private void handle(SocketChannel client) {
+        try (client) {
+            String request = new String(
+                    Channels.newInputStream(client).readAllBytes(),
+                    StandardCharsets.UTF_8);
+            if (request.endsWith("\0")) {
+                request = request.substring(0, request.length() - 1);
+            }
+            String[] args = request.isEmpty() ? new String[0]
+                : request.split("\0", -1);
+            OutputStream out = new BufferedOutputStream(
+                    Channels.newOutputStream(client));
+            OUTPUT.set(out);
+            try {
+                run(args);
+            } catch (GitletException excp) {
+                System.out.println(excp.getMessage());
+            } catch (RuntimeException excp) {
+                System.out.println("Error: " + excp.getMessage());
+            } finally {
+                System.out.flush();
+                OUTPUT.remove();
+                out.flush();
+            }
+        } catch (IOException excp) {
+            return;
+        }
+    }
+
+    /** Runs command ARGS under the repository lock. */
+    private void run(String... args) throws IOException {
+        if (args.length == 0) {
+            System.out.println("Please enter a command.");
+            return;
+        }
+        if (args[0].equals("daemon")) {
+            System.out.println("A daemon is already running.");
+            return;
+        }
+        if (Main.READ_ONLY.contains(args[0]) && !RepoLock.upgradePending()) {
+            lockShared();
+            try {
+                execute(args);
+            } finally {
+                unlockShared();
+            }
+        } else {
+            _commands.writeLock().lock();
+            try {
+                RepoLock lock = RepoLock.acquire(false);
+                try {
+                    execute(args);
+                } finally {
+                    lock.close();
+                }
+            } finally {
+                _commands.writeLock().unlock();
+            }
+        }
+    }
+
+    /** Runs ARGS on the repository, holding its lock. */
+    private void execute(String... args) throws IOException {
+        Reposotiry repo = new Reposotiry(refresh());
+        Main.run(repo, args);
+        repo.saveCaches();
+        Durability.flush();
+        synchronized (this) {
+            _statStamp = stamp(StatCache.INDEX);
+        }
+    }
+
+    /** Takes the repository lock for a reading command, sharing it with
+     *  the other reading commands the daemon is running. */
+    private void lockShared() {
+        _commands.readLock().lock();
+        synchronized (this) {
+            if (_readers == 0) {
+                try {
+                    _shared = RepoLock.acquire(true);
+                } catch (RuntimeException excp) {
+                    _commands.readLock().unlock();
+                    throw excp;
+                }
+            }
+            _readers += 1;
+        }
+    }
+
+    private void unlockShared() {
+        synchronized (this) {
+            _readers -= 1;
+            if (_readers == 0) {
+                _shared.close();
+                _shared = null;
+            }
+        }
+        _commands.readLock().unlock();
+    }
+
+    /** Drops whatever another process has changed since it was last seen
+     *  and returns the stat cache to use. */
+    private synchronized StatCache refresh() {
+        long[] pack = stamp(ObjectStore.current().packPointer());
+        if (!Arrays.equals(pack, _packStamp)) {
+            ObjectStore.reset();
+            _packStamp = pack;
+        }
+        long[] stat = stamp(StatCache.INDEX);
+        if (_stat == null || !Arrays.equals(stat, _statStamp)) {
+            _stat = StatCache.load();
+            _statStamp = stat;
+        }
+        return _stat;
+    }
+
+    /** Returns the modification time and length of FILE, which are both
+     *  zero if it does not exist. */
+    private static long[] stamp(File file) {
+        return new long[] {file.lastModified(), file.length()};
+    }
+
+    /** Standard output of the daemon: what a thread running a command
+     *  prints goes to that command's client, and anything else to
+     *  the daemon's own output.
+     */
+    private static class Output extends OutputStream {
+
+        /** Where output of no command goes.
+         */
+        private final OutputStream _console;
+
+        Output(OutputStream console) {
+            this._console = console;
+        }
+
+        private OutputStream target() {
+            OutputStream out = OUTPUT.get();
+            return out == null ? _console : out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            target().write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            target().write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            target().flush();
+        }
+    }
+}
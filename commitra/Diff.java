@@ -0,0 +1,446 @@
+package commitra;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Line diffs.  Files are split into lines, each line is replaced by a
+ *  number shared by all equal lines, and the numbers are compared with
+ *  Myers' O(ND) algorithm in its linear-space form: the middle snake of
+ *  the shortest edit script is found by searching from both ends at once,
+ *  and the halves on either side are diffed recursively.  Lines common
+ *  to the start or end of a range are stripped first, so small edits to
+ *  large files cost little more than a scan, and lines found in only one
+ *  of the files are left out of the search altogether.
+ *
+ *  A file is kept as its bytes and the offsets of its lines, which keep
+ *  their terminators, and lines are numbered through an open-addressing
+ *  table of ints hashed from those bytes, so no object is made per line
+ *  and writing lines back reproduces the original bytes exactly.
+ */
+class Diff {
+
+    /** Number of leading bytes looked at to tell binary files. */
+    private static final int BINARY_PROBE = 8000;
+
+    /** Lines of context around each hunk of a unified diff. */
+    static final int CONTEXT = 3;
+
+    /** One difference: lines [aStart, aEnd) of the first file replaced by
+     *  lines [bStart, bEnd) of the second.  Either range may be empty.
+     */
+    static class Hunk {
+        final int aStart;
+        final int aEnd;
+        final int bStart;
+        final int bEnd;
+
+        Hunk(int aStart, int aEnd, int bStart, int bEnd) {
+            this.aStart = aStart;
+            this.aEnd = aEnd;
+            this.bStart = bStart;
+            this.bEnd = bEnd;
+        }
+    }
+
+    /** The lines of a file.
+     */
+    static class Text {
+        /** Contents of the file. */
+        final byte[] bytes;
+        /** Offset of each line in bytes, followed by bytes.length. */
+        private final int[] _starts;
+
+        Text(byte[] bytes) {
+            this.bytes = bytes;
+            int count = 0;
+            for (byte b : bytes) {
+                if (b == '\n') {
+                    count += 1;
+                }
+            }
+            boolean partial = bytes.length > 0
+                    && bytes[bytes.length - 1] != '\n';
+            _starts = new int[count + (partial ? 1 : 0) + 1];
+            int line = 1;
+            for (int i = 0; i < bytes.length; i += 1) {
+                if (bytes[i] == '\n' && i + 1 < bytes.length) {
+                    _starts[line] = i + 1;
+                    line += 1;
+                }
+            }
+            _starts[_starts.length - 1] = bytes.length;
+        }
+
+        /** Returns the number of lines. */
+        int size() {
+            return _starts.length - 1;
+        }
+
+        /** Returns true iff line I ends with a newline. */
+        boolean hasNewline(int i) {
+            return bytes[_starts[i + 1] - 1] == '\n';
+        }
+
+        /** Writes lines [FROM, TO) to OUT as they are. */
+        void write(OutputStream out, int from, int to) throws IOException {
+            out.write(bytes, _starts[from], _starts[to] - _starts[from]);
+        }
+
+        /** Returns the hash of line I. */
+        private int hash(int i) {
+            int h = 0;
+            for (int k = _starts[i]; k < _starts[i + 1]; k += 1) {
+                h = 31 * h + bytes[k];
+            }
+            return h;
+        }
+
+        /** Returns true iff line I equals line J of OTHER. */
+        private boolean equal(int i, Text other, int j) {
+            return Arrays.equals(bytes, _starts[i], _starts[i + 1],
+                    other.bytes, other._starts[j], other._starts[j + 1]);
+        }
+    }
+
+    /** Returns true iff CONTENTS looks like a binary file, having a NUL
+     *  byte near its start. */
+    static boolean isBinary(byte[] contents) {
+        for (int i = 0; i < Math.min(contents.length, BINARY_PROBE); i += 1) {
+            if (contents[i] == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Returns TEXTS with each line replaced by a number, equal lines of
+     *  any of them getting the same number. */
+    static int[][] intern(Text... texts) {
+        int total = 0;
+        for (Text text : texts) {
+            total += text.size();
+        }
+        int capacity = Integer.highestOneBit(Math.max(total, 8) * 2) * 2;
+        int mask = capacity - 1;
+        int[] slots = new int[capacity];
+        Arrays.fill(slots, -1);
+        int[] hashes = new int[total];
+        int[] firstText = new int[total];
+        int[] firstLine = new int[total];
+        int count = 0;
+        int[][] result = new int[texts.length][];
+        for (int t = 0; t < texts.length; t += 1) {
+            Text text = texts[t];
+            result[t] = new int[text.size()];
+            for (int i = 0; i < text.size(); i += 1) {
+                int h = text.hash(i);
+                int slot = (h ^ (h >>> 16)) & mask;
+                int id = slots[slot];
+                while (id >= 0 && (hashes[id] != h
+                        || !text.equal(i, texts[firstText[id]],
+                                firstLine[id]))) {
+                    slot = (slot + 1) & mask;
+                    id = slots[slot];
+                }
+                if (id < 0) {
+                    id = count;
+                    count += 1;
+                    slots[slot] = id;
+                    hashes[id] = h;
+                    firstText[id] = t;
+                    firstLine[id] = i;
+                }
+                result[t][i] = id;
+            }
+        }
+        return result;
+    }
+
+    /** Returns the hunks turning A into B, in order. */
+    static List<Hunk> diff(Text a, Text b) {
+        int[][] numbers = intern(a, b);
+        return diff(numbers[0], numbers[1]);
+    }
+
+    /** Returns the hunks turning A into B, in order. */
+    static List<Hunk> diff(int[] a, int[] b) {
+        boolean[] deleted = new boolean[a.length];
+        boolean[] inserted = new boolean[b.length];
+        int[] aIndex = common(a, b, deleted);
+        int[] bIndex = common(b, a, inserted);
+        int[] x = new int[aIndex.length];
+        int[] y = new int[bIndex.length];
+        for (int i = 0; i < x.length; i += 1) {
+            x[i] = a[aIndex[i]];
+        }
+        for (int j = 0; j < y.length; j += 1) {
+            y[j] = b[bIndex[j]];
+        }
+        boolean[] xDeleted = new boolean[x.length];
+        boolean[] yInserted = new boolean[y.length];
+        new Myers(x, y, xDeleted, yInserted).compare(0, x.length,
+                0, y.length);
+        for (int i = 0; i < x.length; i += 1) {
+            deleted[aIndex[i]] = xDeleted[i];
+        }
+        for (int j = 0; j < y.length; j += 1) {
+            inserted[bIndex[j]] = yInserted[j];
+        }
+        List<Hunk> hunks = new ArrayList<>();
+        int i = 0;
+        int j = 0;
+        while (i < a.length || j < b.length) {
+            if (i < a.length && j < b.length
+                    && !deleted[i] && !inserted[j]) {
+                i += 1;
+                j += 1;
+                continue;
+            }
+            int i0 = i;
+            int j0 = j;
+            while (i < a.length && deleted[i]) {
+                i += 1;
+            }
+            while (j < b.length && inserted[j]) {
+                j += 1;
+            }
+            hunks.add(new Hunk(i0, i, j0, j));
+        }
+        return hunks;
+    }
+
+    /** Writes to OUT the unified diff of file PATH from contents OLD to
+     *  NOW, either null where the file is absent, with CONTEXT lines of
+     *  context around each change.  Writes nothing if they are equal. */
+    static void unified(String path, byte[] old, byte[] now,
+                        OutputStream out) throws IOException {
+        if (old != null && now != null && Arrays.equals(old, now)) {
+            return;
+        }
+        write(out, "diff --commitra a/" + path + " b/" + path + "\n");
+        if (isBinary(old == null ? new byte[0] : old)
+                || isBinary(now == null ? new byte[0] : now)) {
+            write(out, "Binary files " + (old == null ? "/dev/null"
+                    : "a/" + path) + " and " + (now == null ? "/dev/null"
+                    : "b/" + path) + " differ\n");
+            return;
+        }
+        write(out, "--- " + (old == null ? "/dev/null" : "a/" + path)
+                + "\n+++ " + (now == null ? "/dev/null" : "b/" + path)
+                + "\n");
+        Text a = new Text(old == null ? new byte[0] : old);
+        Text b = new Text(now == null ? new byte[0] : now);
+        List<Hunk> hunks = diff(a, b);
+        int h = 0;
+        while (h < hunks.size()) {
+            int last = h;
+            while (last + 1 < hunks.size() && hunks.get(last + 1).aStart
+                    - hunks.get(last).aEnd <= 2 * CONTEXT) {
+                last += 1;
+            }
+            Hunk first = hunks.get(h);
+            Hunk end = hunks.get(last);
+            int aLo = Math.max(0, first.aStart - CONTEXT);
+            int bLo = first.bStart - (first.aStart - aLo);
+            int aHi = Math.min(a.size(), end.aEnd + CONTEXT);
+            int bHi = end.bEnd + (aHi - end.aEnd);
+            write(out, "@@ -" + range(aLo, aHi) + " +" + range(bLo, bHi)
+                    + " @@\n");
+            int i = aLo;
+            for (Hunk hunk : hunks.subList(h, last + 1)) {
+                writeLines(out, a, i, hunk.aStart, ' ');
+                writeLines(out, a, hunk.aStart, hunk.aEnd, '-');
+                writeLines(out, b, hunk.bStart, hunk.bEnd, '+');
+                i = hunk.aEnd;
+            }
+            writeLines(out, a, i, aHi, ' ');
+            h = last + 1;
+        }
+    }
+
+    /** Returns the range of lines [LO, HI) as written in a hunk header:
+     *  the first line numbered from 1, or the line before an empty range,
+     *  and the count if it is not 1. */
+    private static String range(int lo, int hi) {
+        int count = hi - lo;
+        int start = count == 0 ? lo : lo + 1;
+        return count == 1 ? Integer.toString(start) : start + "," + count;
+    }
+
+    /** Writes lines [FROM, TO) of TEXT to OUT, each after PREFIX. */
+    private static void writeLines(OutputStream out, Text text, int from,
+                                   int to, char prefix) throws IOException {
+        for (int k = from; k < to; k += 1) {
+            out.write(prefix);
+            text.write(out, k, k + 1);
+            if (!text.hasNewline(k)) {
+                write(out, "\n\\ No newline at end of file\n");
+            }
+        }
+    }
+
+    private static void write(OutputStream out, String s)
+            throws IOException {
+        out.write(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Marks in ABSENT the lines of A that occur nowhere in B, which no
+     *  diff can match, and returns the indices of the others.  Leaving
+     *  them out of the search does not change the shortest edit script
+     *  but keeps files rewritten line by line from costing O(N^2). */
+    private static int[] common(int[] a, int[] b, boolean[] absent) {
+        int max = 0;
+        for (int n : a) {
+            max = Math.max(max, n);
+        }
+        boolean[] inB = new boolean[max + 1];
+        for (int n : b) {
+            if (n <= max) {
+                inB[n] = true;
+            }
+        }
+        int[] index = new int[a.length];
+        int count = 0;
+        for (int i = 0; i < a.length; i += 1) {
+            if (inB[a[i]]) {
+                index[count] = i;
+                count += 1;
+            } else {
+                absent[i] = true;
+            }
+        }
+        return Arrays.copyOf(index, count);
+    }
+
+    /** One run of Myers' algorithm, marking the lines of A deleted and
+     *  those of B inserted by a shortest edit script.
+     */
+    private static class Myers {
+        private final int[] _a;
+        private final int[] _b;
+        private final boolean[] _deleted;
+        private final boolean[] _inserted;
+
+        /** Furthest x reached on each diagonal searching forward, and
+         *  nearest searching backward, offset by _off. */
+        private final int[] _fwd;
+        private final int[] _bwd;
+        private final int _off;
+
+        /** Ends of the middle snake last found. */
+        private int _snakeX;
+        private int _snakeY;
+        private int _snakeU;
+        private int _snakeV;
+
+        Myers(int[] a, int[] b, boolean[] deleted, boolean[] inserted) {
+            this._a = a;
+            this._b = b;
+            this._deleted = deleted;
+            this._inserted = inserted;
+            this._off = 2 * (a.length + b.length) + 2;
+            this._fwd = new int[2 * _off + 1];
+            this._bwd = new int[2 * _off + 1];
+        }
+
+        /** Marks the edits turning A[ALO, AHI) into B[BLO, BHI). */
+        void compare(int aLo, int aHi, int bLo, int bHi) {
+            while (aLo < aHi && bLo < bHi && _a[aLo] == _b[bLo]) {
+                aLo += 1;
+                bLo += 1;
+            }
+            while (aLo < aHi && bLo < bHi && _a[aHi - 1] == _b[bHi - 1]) {
+                aHi -= 1;
+                bHi -= 1;
+            }
+            if (aLo == aHi) {
+                for (int j = bLo; j < bHi; j += 1) {
+                    _inserted[j] = true;
+                }
+            } else if (bLo == bHi) {
+                for (int i = aLo; i < aHi; i += 1) {
+                    _deleted[i] = true;
+                }
+            } else {
+                middleSnake(aLo, aHi, bLo, bHi);
+                int x = _snakeX;
+                int y = _snakeY;
+                int u = _snakeU;
+                int v = _snakeV;
+                compare(aLo, x, bLo, y);
+                compare(u, aHi, v, bHi);
+            }
+        }
+
+        /** Finds a snake on a shortest path from (ALO, BLO) to (AHI, BHI)
+         *  that splits it into two paths of about half its length. */
+        private void middleSnake(int aLo, int aHi, int bLo, int bHi) {
+            int n = aHi - aLo;
+            int m = bHi - bLo;
+            int delta = n - m;
+            boolean odd = (delta & 1) != 0;
+            _fwd[_off + 1] = 0;
+            _bwd[_off + delta - 1] = n;
+            for (int d = 0; d <= (n + m + 1) / 2; d += 1) {
+                for (int k = -d; k <= d; k += 2) {
+                    int x;
+                    if (k == -d || (k != d
+                            && _fwd[_off + k - 1] < _fwd[_off + k + 1])) {
+                        x = _fwd[_off + k + 1];
+                    } else {
+                        x = _fwd[_off + k - 1] + 1;
+                    }
+                    int y = x - k;
+                    int x0 = x;
+                    int y0 = y;
+                    while (x < n && y < m
+                            && _a[aLo + x] == _b[bLo + y]) {
+                        x += 1;
+                        y += 1;
+                    }
+                    _fwd[_off + k] = x;
+                    if (odd && k >= delta - (d - 1) && k <= delta + (d - 1)
+                            && x >= _bwd[_off + k]) {
+                        setSnake(aLo + x0, bLo + y0, aLo + x, bLo + y);
+                        return;
+                    }
+                }
+                for (int k = delta - d; k <= delta + d; k += 2) {
+                    int x;
+                    if (k == delta + d || (k != delta - d
+                            && _bwd[_off + k - 1] < _bwd[_off + k + 1])) {
+                        x = _bwd[_off + k - 1];
+                    } else {
+                        x = _bwd[_off + k + 1] - 1;
+                    }
+                    int y = x - k;
+                    int x0 = x;
+                    int y0 = y;
+                    while (x > 0 && y > 0
+                            && _a[aLo + x - 1] == _b[bLo + y - 1]) {
+                        x -= 1;
+                        y -= 1;
+                    }
+                    _bwd[_off + k] = x;
+                    if (!odd && k >= -d && k <= d
+                            && x <= _fwd[_off + k]) {
+                        setSnake(aLo + x, bLo + y, aLo + x0, bLo + y0);
+                        return;
+                    }
+                }
+            }
+            throw new IllegalStateException("no middle snake");
+        }
+
+        private void setSnake(int x, int y, int u, int v) {
+            _snakeX = x;
+            _snakeY = y;
+            _snakeU = u;
+            _snakeV = v;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package commitra;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+
+/** Crash-safe replacement of repository files.  A file is never written
+ *  in place: its new contents go to a uniquely named temporary file in
+ *  the same directory, which is then renamed over it, so readers and a
+ *  crash see either the old contents or the new, never a torn mix.
+ *
+ *  When the data reaches the disk depends on the sync mode, taken from
+ *  the commitra.sync system property or the COMMITRA_SYNC environment
+ *  variable:
+ *    always  each file is fsynced before its rename and its directory
+ *            after, so every write is durable when it returns;
+ *    group   (the default) each file is fsynced before its rename, so a
+ *            crash leaves either the old contents or the new under its
+ *            name, but the directories holding the renames, and files
+ *            appended to, are fsynced together by flush() at the end of
+ *            the command, before the repository lock is released;
+ *    none    nothing is fsynced, leaving it to the operating system, so
+ *            a crash may leave a renamed file empty.
+ */
+class Durability {
+
+    /** When written files are synced to disk.
+     */
+    enum Mode { ALWAYS, GROUP, NONE }
+
+    /** The sync mode of this process. */
+    private static final Mode MODE = readMode();
+
+    /** Files renamed into place since the last flush, in group mode.
+     */
+    private static final LinkedHashSet<Path> PENDING = new LinkedHashSet<>();
+
+    /** Files appended to since the last flush, in group mode.  Guarded by
+     *  PENDING.
+     */
+    private static final LinkedHashSet<Path> APPENDED = new LinkedHashSet<>();
+
+    static Mode mode() {
+        return MODE;
+    }
+
+    private static Mode readMode() {
+        String mode = System.getProperty("commitra.sync",
+                System.getenv("COMMITRA_SYNC"));
+        if (mode == null) {
+            return Mode.GROUP;
+        }
+        try {
+            return Mode.valueOf(mode.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException excp) {
+            return Mode.GROUP;
+        }
+    }
+
+    /** Returns a new, empty temporary file beside FILE. */
+    static File tempFile(File file) {
+        File dir = file.getAbsoluteFile().getParentFile();
+        try {
+            return Files.createTempFile(dir.toPath(),
+                    "." + file.getName() + ".", ".tmp").toFile();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Replaces the contents of FILE with CONTENTS, one array after
+     *  another. */
+    static void replace(File file, byte[]... contents) {
+        File temp = tempFile(file);
+        try (FileChannel channel = FileChannel.open(temp.toPath(),
+                StandardOpenOption.WRITE)) {
+            for (byte[] part : contents) {
+                ByteBuffer buffer = ByteBuffer.wrap(part);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            if (MODE != Mode.NONE) {
+                channel.force(true);
+            }
+        } catch (IOException excp) {
+            temp.delete();
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        rename(temp, file);
+    }
+
+    /** Renames TEMP, a fully written file in the directory of FILE, over
+     *  FILE. */
+    static void commit(File temp, File file) {
+        if (MODE != Mode.NONE) {
+            force(temp.toPath());
+        }
+        rename(temp, file);
+    }
+
+    /** Records that FILE was changed in place, as by an append. */
+    static void written(File file) {
+        if (MODE == Mode.ALWAYS) {
+            force(file.toPath());
+        } else if (MODE == Mode.GROUP) {
+            synchronized (PENDING) {
+                APPENDED.add(file.toPath().toAbsolutePath());
+            }
+        }
+    }
+
+    /** Syncs every file appended to since the last flush, and then the
+     *  directories of those files and of the files renamed since.  Does
+     *  nothing except in group mode. */
+    static void flush() {
+        LinkedHashSet<Path> dirs = new LinkedHashSet<>();
+        synchronized (PENDING) {
+            for (Path path : PENDING) {
+                dirs.add(path.getParent());
+            }
+            PENDING.clear();
+            for (Path path : APPENDED) {
+                if (Files.exists(path)) {
+                    force(path);
+                }
+                dirs.add(path.getParent());
+            }
+            APPENDED.clear();
+        }
+        for (Path dir : dirs) {
+            forceDirectory(dir);
+        }
+    }
+
+    private static void rename(File temp, File file) {
+        try {
+            Files.move(temp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            temp.delete();
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        if (MODE == Mode.ALWAYS) {
+            forceDirectory(file.getAbsoluteFile().getParentFile().toPath());
+        } else if (MODE == Mode.GROUP) {
+            synchronized (PENDING) {
+                PENDING.add(file.toPath().toAbsolutePath());
+            }
+        }
+    }
+
+    private static void force(Path path) {
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Syncs the entries of directory DIR, where the platform allows
+     *  opening a directory at all. */
+    private static void forceDirectory(Path dir) {
+        try (FileChannel channel = FileChannel.open(dir,
+                StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException excp) {
+            return;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package commitra;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+
+/** Append-only files of length-prefixed records.  Each record is a
+ *  four-byte length followed by that many bytes.  Records are only ever
+ *  appended, so writing one costs the same however long the file is; a
+ *  record cut short by a crash is ignored when reading.
+ */
+class Journal {
+
+    /** Appends RECORDS to FILE, creating it if needed, in one write. */
+    static void append(File file, byte[]... records) {
+        int size = 0;
+        for (byte[] record : records) {
+            size += 4 + record.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (byte[] record : records) {
+            buffer.putInt(record.length).put(record);
+        }
+        buffer.flip();
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        Durability.written(file);
+    }
+
+    /** Appends RECORD, encoded as UTF-8, to FILE. */
+    static void append(File file, String record) {
+        append(file, record.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Calls ACTION on each complete record of FILE in order, holding
+     *  only one record in memory at a time.  Does nothing if FILE does
+     *  not exist. */
+    static void forEach(File file, Consumer<byte[]> action) {
+        if (!file.isFile()) {
+            return;
+        }
+        long remaining = file.length();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(file.toPath())))) {
+            while (remaining >= 4) {
+                int length = in.readInt();
+                remaining -= 4;
+                if (length < 0 || length > remaining) {
+                    return;
+                }
+                byte[] record = new byte[length];
+                in.readFully(record);
+                remaining -= length;
+                action.accept(record);
+            }
+        } catch (EOFException excp) {
+            return;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+}
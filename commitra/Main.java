@@ -1,16 +1,50 @@
 package commitra;
 
 import java.io.IOException;
+import java.util.Set;
 
 public class Main {
 
+    /** Commands that only read the repository, and so may run alongside
+     *  each other under a shared lock. */
+    static final Set<String> READ_ONLY =
+        Set.of("log", "global-log", "find", "status", "diff");
+
     public static void main(String... args) throws IOException {
-        Reposotiry repo = new Reposotiry();
         if (args.length == 0) {
             System.out.println("Please enter a command.");
             return;
         }
-        
+        RepoLock lock = null;
+        try {
+            if (args[0].equals("daemon")) {
+                Daemon.serve();
+                return;
+            }
+            if (Reposotiry.COMMITRA.isDirectory() && Daemon.forward(args)) {
+                return;
+            }
+            if (Reposotiry.COMMITRA.isDirectory()) {
+                lock = RepoLock.acquire(READ_ONLY.contains(args[0])
+                        && !RepoLock.upgradePending());
+            }
+            ObjectStore.reset();
+            Reposotiry repo = new Reposotiry();
+            run(repo, args);
+            repo.saveCaches();
+            Durability.flush();
+        } catch (GitletException excp) {
+            System.out.println(excp.getMessage());
+        } finally {
+            if (lock != null) {
+                lock.close();
+            }
+        }
+    }
+
+    /** Runs the command ARGS on REPO. */
+    static void run(Reposotiry repo, String... args)
+            throws IOException {
         switch (args[0]) {
             case "init":
                 repo.init(args);
@@ -33,6 +67,9 @@ public class Main {
             case "find":
                 repo.find(args);
                 break;
+            case "diff":
+                repo.diff(args);
+                break;
             case "status":
                 repo.status(args);
                 break;
@@ -54,6 +91,9 @@ public class Main {
             case "merge":
                 repo.merge(args);
                 break;
+            case "pack":
+                repo.pack(args);
+                break;
             default:
                 System.out.println("No command with that name exist.");
         }
@@ -0,0 +1,190 @@
+package commitra;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/** Line-level three-way merge of file contents, as in diff3.  Both
+ *  versions are diffed against their base; where their hunks are apart
+ *  each side's change is taken, and each run of overlapping or touching
+ *  hunks is a region that is taken from whichever side changed it, or
+ *  from either if both made the same change, and is otherwise written as
+ *  a conflict between markers.  Unchanged lines are copied from the base.
+ *  The result is written to a stream as it is worked out, each line
+ *  copied straight from the bytes of its version.
+ *
+ *  Binary files, those with a NUL byte near their start, are not merged
+ *  by line: the whole of both versions makes one conflict.
+ */
+class Merge3 {
+
+    /** Line before our side of a conflict. */
+    static final byte[] OURS =
+        "<<<<<<< HEAD\n".getBytes(StandardCharsets.UTF_8);
+
+    /** Line between the two sides of a conflict. */
+    static final byte[] SEPARATOR =
+        "=======\n".getBytes(StandardCharsets.UTF_8);
+
+    /** Line after their side of a conflict. */
+    static final byte[] THEIRS =
+        ">>>>>>>\n".getBytes(StandardCharsets.UTF_8);
+
+    /** Lines of the base, ours and theirs. */
+    private final Diff.Text _base;
+    private final Diff.Text _ours;
+    private final Diff.Text _theirs;
+
+    /** The same lines as numbers, equal lines having equal numbers. */
+    private final int[][] _numbers;
+
+    /** Where the merge is written. */
+    private final OutputStream _out;
+
+    /** Next line of the base to be copied. */
+    private int _pos;
+
+    /** Number of conflicts written. */
+    private int _conflicts;
+
+    private Merge3(byte[] base, byte[] ours, byte[] theirs,
+                   OutputStream out) {
+        this._base = new Diff.Text(base);
+        this._ours = new Diff.Text(ours);
+        this._theirs = new Diff.Text(theirs);
+        this._numbers = Diff.intern(_base, _ours, _theirs);
+        this._out = out;
+    }
+
+    /** Writes to OUT the merge of OURS and THEIRS, two versions of file
+     *  BASE, and returns the number of conflicts in it.  Any of the three
+     *  may be null where the file is absent. */
+    static int merge(byte[] base, byte[] ours, byte[] theirs,
+                     OutputStream out) throws IOException {
+        base = base == null ? new byte[0] : base;
+        ours = ours == null ? new byte[0] : ours;
+        theirs = theirs == null ? new byte[0] : theirs;
+        if (Diff.isBinary(base) || Diff.isBinary(ours)
+                || Diff.isBinary(theirs)) {
+            out.write(OURS);
+            writeLine(out, ours);
+            out.write(SEPARATOR);
+            writeLine(out, theirs);
+            out.write(THEIRS);
+            return 1;
+        }
+        Merge3 merge = new Merge3(base, ours, theirs, out);
+        merge.run();
+        return merge._conflicts;
+    }
+
+    /** Writes CONTENTS to OUT, ending it with a newline if it has none. */
+    private static void writeLine(OutputStream out, byte[] contents)
+            throws IOException {
+        out.write(contents);
+        if (contents.length > 0 && contents[contents.length - 1] != '\n') {
+            out.write('\n');
+        }
+    }
+
+    private void run() throws IOException {
+        List<Diff.Hunk> ours = Diff.diff(_numbers[0], _numbers[1]);
+        List<Diff.Hunk> theirs = Diff.diff(_numbers[0], _numbers[2]);
+        int i = 0;
+        int j = 0;
+        while (i < ours.size() || j < theirs.size()) {
+            Diff.Hunk first;
+            if (j == theirs.size() || (i < ours.size()
+                    && ours.get(i).aStart <= theirs.get(j).aStart)) {
+                first = ours.get(i);
+            } else {
+                first = theirs.get(j);
+            }
+            int lo = first.aStart;
+            int hi = first.aEnd;
+            int i0 = i;
+            int j0 = j;
+            boolean grew = true;
+            while (grew) {
+                grew = false;
+                while (i < ours.size() && ours.get(i).aStart <= hi) {
+                    hi = Math.max(hi, ours.get(i).aEnd);
+                    i += 1;
+                    grew = true;
+                }
+                while (j < theirs.size() && theirs.get(j).aStart <= hi) {
+                    hi = Math.max(hi, theirs.get(j).aEnd);
+                    j += 1;
+                    grew = true;
+                }
+            }
+            copy(_base, _pos, lo);
+            _pos = hi;
+            if (j == j0) {
+                int[] range = side(ours, i0, i, lo, hi);
+                copy(_ours, range[0], range[1]);
+            } else if (i == i0) {
+                int[] range = side(theirs, j0, j, lo, hi);
+                copy(_theirs, range[0], range[1]);
+            } else {
+                int[] a = side(ours, i0, i, lo, hi);
+                int[] b = side(theirs, j0, j, lo, hi);
+                if (same(_numbers[1], a, _numbers[2], b)) {
+                    copy(_ours, a[0], a[1]);
+                } else {
+                    conflict(a, b);
+                }
+            }
+        }
+        copy(_base, _pos, _base.size());
+    }
+
+    /** Returns the range of lines that replaces base lines [LO, HI) on a
+     *  side whose hunks there are HUNKS[FROM, TO). */
+    private static int[] side(List<Diff.Hunk> hunks, int from, int to,
+                              int lo, int hi) {
+        Diff.Hunk first = hunks.get(from);
+        Diff.Hunk last = hunks.get(to - 1);
+        return new int[] {first.bStart - (first.aStart - lo),
+            last.bEnd + (hi - last.aEnd)};
+    }
+
+    /** Returns true iff lines RA of X equal lines RB of Y. */
+    private static boolean same(int[] x, int[] ra, int[] y, int[] rb) {
+        if (ra[1] - ra[0] != rb[1] - rb[0]) {
+            return false;
+        }
+        for (int k = 0; k < ra[1] - ra[0]; k += 1) {
+            if (x[ra[0] + k] != y[rb[0] + k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Writes a conflict between lines A of ours and B of theirs. */
+    private void conflict(int[] a, int[] b) throws IOException {
+        _out.write(OURS);
+        copyLines(_ours, a[0], a[1]);
+        _out.write(SEPARATOR);
+        copyLines(_theirs, b[0], b[1]);
+        _out.write(THEIRS);
+        _conflicts += 1;
+    }
+
+    /** Writes lines [FROM, TO) of TEXT as they are. */
+    private void copy(Diff.Text text, int from, int to) throws IOException {
+        text.write(_out, from, to);
+    }
+
+    /** Writes lines [FROM, TO) of TEXT, ending the last with a newline if
+     *  it has none so that a marker can follow. */
+    private void copyLines(Diff.Text text, int from, int to)
+            throws IOException {
+        copy(text, from, to);
+        if (to > from && !text.hasNewline(to - 1)) {
+            _out.write('\n');
+        }
+    }
+}
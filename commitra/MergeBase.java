@@ -0,0 +1,195 @@
+package commitra;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/** Finds merge bases in a CommitGraph.  Both sides are walked at once,
+ *  newest generation first, painting each commit with the side(s) it is
+ *  reachable from; a commit painted by both sides is a common ancestor
+ *  and everything below it is marked stale.  Each commit is expanded at
+ *  most once, so shared history is never walked twice.
+ */
+class MergeBase {
+
+    /** Reachable from the first commit. */
+    private static final int PARENT1 = 1;
+
+    /** Reachable from the second commit. */
+    private static final int PARENT2 = 2;
+
+    /** Below a common ancestor already found. */
+    private static final int STALE = 4;
+
+    /** Already recorded as a common ancestor. */
+    private static final int RESULT = 8;
+
+    /** Waiting in the queue. */
+    private static final int QUEUED = 16;
+
+    /** The graph being searched.
+     */
+    private final CommitGraph _graph;
+
+    /** Flags of every commit seen by the current walk.
+     */
+    private HashMap<String, Integer> _flags;
+
+    /** Commits waiting to be expanded, newest generation first.
+     */
+    private PriorityQueue<CommitGraph.Node> _queue;
+
+    /** Number of queued commits that are not stale.
+     */
+    private int _live;
+
+    MergeBase(CommitGraph graph) {
+        this._graph = graph;
+    }
+
+    /** Returns the best common ancestor of commits A and B: of the common
+     *  ancestors that are not ancestors of another common ancestor, the
+     *  one with the highest generation, newest first on ties.  Returns
+     *  null if A and B share no history. */
+    String find(String a, String b) {
+        String best = null;
+        for (String id : findAll(a, b)) {
+            if (best == null
+                    || compare(_graph.get(id), _graph.get(best)) < 0) {
+                best = id;
+            }
+        }
+        return best;
+    }
+
+    /** Returns every best common ancestor of A and B. */
+    List<String> findAll(String a, String b) {
+        List<String> result = new ArrayList<>();
+        if (a.equals(b)) {
+            result.add(a);
+            return result;
+        }
+        List<String> candidates = paint(a, b);
+        for (String c : candidates) {
+            boolean redundant = false;
+            for (String d : candidates) {
+                if (!c.equals(d) && isAncestor(c, d)) {
+                    redundant = true;
+                    break;
+                }
+            }
+            if (!redundant) {
+                result.add(c);
+            }
+        }
+        return result;
+    }
+
+    /** Returns true iff ANCESTOR is DESCENDANT or one of its ancestors.
+     *  Commits with a generation below ANCESTOR's are never expanded. */
+    boolean isAncestor(String ancestor, String descendant) {
+        if (ancestor.equals(descendant)) {
+            return true;
+        }
+        int cutoff = _graph.generation(ancestor);
+        start();
+        push(descendant, PARENT1);
+        while (!_queue.isEmpty()) {
+            CommitGraph.Node node = pop();
+            for (String p : _graph.parents(node.id)) {
+                if (p.equals(ancestor)) {
+                    return true;
+                }
+                if (_graph.generation(p) > cutoff) {
+                    push(p, PARENT1);
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Paints down from A and B and returns the common ancestors found,
+     *  highest generation first.  Some may be ancestors of others.
+     *  The walk stops once every queued commit is stale. */
+    private List<String> paint(String a, String b) {
+        List<String> result = new ArrayList<>();
+        start();
+        push(a, PARENT1);
+        push(b, PARENT2);
+
+        while (_live > 0) {
+            CommitGraph.Node node = pop();
+            int sides = _flags.get(node.id) & (PARENT1 | PARENT2 | STALE);
+            if ((sides & (PARENT1 | PARENT2)) == (PARENT1 | PARENT2)) {
+                if ((sides & STALE) == 0
+                        && (_flags.get(node.id) & RESULT) == 0) {
+                    _flags.put(node.id, _flags.get(node.id) | RESULT);
+                    result.add(node.id);
+                }
+                sides |= STALE;
+            }
+            for (String p : _graph.parents(node.id)) {
+                push(p, sides);
+            }
+        }
+        return result;
+    }
+
+    /** Resets the walk state. */
+    private void start() {
+        _flags = new HashMap<>();
+        _queue = new PriorityQueue<>(MergeBase::compare);
+        _live = 0;
+    }
+
+    /** Adds FLAGS to the flags of commit ID, queueing it if it has not
+     *  been seen before.  Parents always have a lower generation than
+     *  their children, so a commit that has been popped is never reached
+     *  again. */
+    private void push(String id, int flags) {
+        CommitGraph.Node node = _graph.get(id);
+        if (node == null) {
+            return;
+        }
+        Integer boxed = _flags.get(id);
+        int old = boxed == null ? 0 : boxed;
+        if ((old & flags) == flags && boxed != null) {
+            return;
+        }
+        int now = old | flags;
+        if (boxed == null) {
+            now |= QUEUED;
+            _queue.add(node);
+            if ((now & STALE) == 0) {
+                _live += 1;
+            }
+        } else if ((old & QUEUED) != 0 && (old & STALE) == 0
+                && (now & STALE) != 0) {
+            _live -= 1;
+        }
+        _flags.put(id, now);
+    }
+
+    /** Removes and returns the newest queued commit. */
+    private CommitGraph.Node pop() {
+        CommitGraph.Node node = _queue.poll();
+        int flags = _flags.get(node.id);
+        if ((flags & STALE) == 0) {
+            _live -= 1;
+        }
+        _flags.put(node.id, flags & ~QUEUED);
+        return node;
+    }
+
+    /** Orders commits by generation, then time, newest first. */
+    private static int compare(CommitGraph.Node x, CommitGraph.Node y) {
+        if (x.generation != y.generation) {
+            return Integer.compare(y.generation, x.generation);
+        }
+        if (x.time != y.time) {
+            return Long.compare(y.time, x.time);
+        }
+        return x.id.compareTo(y.id);
+    }
+}
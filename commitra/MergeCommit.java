@@ -10,10 +10,23 @@ import static commitra.Utils.sha1;
  */
 class MergeCommit extends Commit {
 
+    /** Fixed so that older serialized merge commits can still be read.
+     */
+    private static final long serialVersionUID = -702865159631392825L;
+
     /** Contains hash of parent commit.
      */
     private String _parent2;
 
+    MergeCommit(String msg, String parent1,
+                        String parent2, String tree, String date) {
+        super(msg, parent1, tree, date);
+        this._parent2 = parent2;
+        changeOwnID(sha1(msg, parent1, parent2, date));
+    }
+
+    /** A merge commit of older repositories, which held BLOBS itself
+     *  rather than a root tree. */
     MergeCommit(String msg, String parent1,
                         String parent2, TreeMap<String,
             String> blobs, String date) {
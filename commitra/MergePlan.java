@@ -0,0 +1,158 @@
+package commitra;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/** The changes a three-way merge makes to the current commit, worked out
+ *  from the trees of the split point (base), the current commit (ours)
+ *  and the given commit (theirs) before any file is touched.
+ *
+ *  The three trees are walked together one directory at a time, merging
+ *  their sorted entries in a single pass.  A directory with the same id
+ *  in ours and theirs, or unchanged in theirs since the base, is skipped
+ *  without being read; one unchanged in ours since the base is taken
+ *  from theirs by a two-way diff.  So the work done is proportional to
+ *  the files that differ, not to the size of the commits.
+ *
+ *  For each file: if ours and theirs agree, or theirs kept the base
+ *  version, ours is kept; if ours kept the base version, theirs is taken
+ *  (TAKE, or REMOVE if theirs deleted it); otherwise both changed it
+ *  differently and their changes must be merged line by line (MERGE).
+ */
+class MergePlan {
+
+    /** What a merge does to one file.
+     */
+    enum Kind {
+        /** Replace the file with the given commit's version. */
+        TAKE,
+        /** Delete the file. */
+        REMOVE,
+        /** Merge both versions with Merge3. */
+        MERGE
+    }
+
+    /** One change to the working tree.
+     */
+    static class Action {
+        /** Path of the file. */
+        final String path;
+        /** What to do with it. */
+        final Kind kind;
+        /** Blob of the file at the split point, or null. */
+        final String base;
+        /** Blob of the file in the current commit, or null. */
+        final String ours;
+        /** Blob of the file in the given commit, or null. */
+        final String theirs;
+
+        Action(String path, Kind kind, String base, String ours,
+               String theirs) {
+            this.path = path;
+            this.kind = kind;
+            this.base = base;
+            this.ours = ours;
+            this.theirs = theirs;
+        }
+    }
+
+    /** Store the trees are read from.
+     */
+    private final ObjectStore _store;
+
+    /** Actions, directory by directory.
+     */
+    private final List<Action> _actions = new ArrayList<>();
+
+    private MergePlan(ObjectStore store) {
+        this._store = store;
+    }
+
+    /** Returns the plan for merging tree THEIRS into tree OURS of STORE,
+     *  BASE being the tree of their split point, or null if they share
+     *  no history. */
+    static MergePlan plan(ObjectStore store, String base, String ours,
+                          String theirs) {
+        MergePlan plan = new MergePlan(store);
+        plan.merge(base, ours, theirs, "");
+        return plan;
+    }
+
+    List<Action> actions() {
+        return _actions;
+    }
+
+    /** Plans the merge of directories BASE, OURS and THEIRS, any of which
+     *  may be null where absent, found at PREFIX. */
+    private void merge(String base, String ours, String theirs,
+                       String prefix) {
+        if (Objects.equals(ours, theirs) || Objects.equals(base, theirs)) {
+            return;
+        }
+        if (Objects.equals(base, ours)) {
+            Tree.diff(_store, ours, theirs,
+                (path, old, now) -> file(prefix + path, old, old, now));
+            return;
+        }
+        Tree b = Tree.read(_store, base);
+        Tree o = Tree.read(_store, ours);
+        Tree t = Tree.read(_store, theirs);
+        for (String name : union(b.blobs(), o.blobs(), t.blobs())) {
+            file(prefix + name, b.blobs().get(name), o.blobs().get(name),
+                    t.blobs().get(name));
+        }
+        for (String name : union(b.trees(), o.trees(), t.trees())) {
+            merge(b.trees().get(name), o.trees().get(name),
+                    t.trees().get(name), prefix + name + Tree.SEPARATOR);
+        }
+    }
+
+    /** Plans the merge of file PATH, whose blobs are BASE, OURS and
+     *  THEIRS. */
+    private void file(String path, String base, String ours, String theirs) {
+        if (Objects.equals(ours, theirs) || Objects.equals(base, theirs)) {
+            return;
+        }
+        if (Objects.equals(base, ours)) {
+            _actions.add(new Action(path,
+                    theirs == null ? Kind.REMOVE : Kind.TAKE, base, ours,
+                    theirs));
+        } else {
+            _actions.add(new Action(path, Kind.MERGE, base, ours, theirs));
+        }
+    }
+
+    /** Returns the names in A, B or C, in order, merging their sorted
+     *  key sets in one pass. */
+    private static List<String> union(TreeMap<String, String> a,
+                                      TreeMap<String, String> b,
+                                      TreeMap<String, String> c) {
+        return union(union(a.keySet(), b.keySet()), c.keySet());
+    }
+
+    private static List<String> union(Iterable<String> x,
+                                      Iterable<String> y) {
+        List<String> result = new ArrayList<>();
+        Iterator<String> i = x.iterator();
+        Iterator<String> j = y.iterator();
+        String p = i.hasNext() ? i.next() : null;
+        String q = j.hasNext() ? j.next() : null;
+        while (p != null || q != null) {
+            int cmp = p == null ? 1 : q == null ? -1 : p.compareTo(q);
+            if (cmp <= 0) {
+                result.add(p);
+                p = i.hasNext() ? i.next() : null;
+                if (cmp == 0) {
+                    q = j.hasNext() ? j.next() : null;
+                }
+            } else {
+                result.add(q);
+                q = j.hasNext() ? j.next() : null;
+            }
+        }
+        return result;
+    }
+}
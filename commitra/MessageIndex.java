@@ -0,0 +1,155 @@
+package commitra;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/** Index from commit messages to the ids of the commits that carry them,
+ *  so find never has to read the commits themselves.  It is kept as a
+ *  Journal of (binary id, message) records appended by each commit and
+ *  loaded into a sorted map, which answers exact and prefix queries.
+ *  Substring and pattern queries scan its distinct messages.
+ */
+class MessageIndex {
+
+    /** Pathname to the message index journal.
+     */
+    static final File MESSAGES = new File(Reposotiry.COMMITRA
+            + File.separator + "messages");
+
+    /** Commit ids by message.
+     */
+    private final TreeMap<String, List<String>> _byMessage = new TreeMap<>();
+
+    /** Ids of all indexed commits.
+     */
+    private final HashSet<String> _ids = new HashSet<>();
+
+    /** Journal new entries are appended to.
+     */
+    private final File _file;
+
+    MessageIndex(File file) {
+        this._file = file;
+    }
+
+    /** Returns the index of the current repository, building it from the
+     *  commits if the repository predates it. */
+    static MessageIndex load() {
+        MessageIndex index = new MessageIndex(MESSAGES);
+        if (MESSAGES.exists()) {
+            Journal.forEach(MESSAGES, index::put);
+        } else {
+            index.rebuild();
+        }
+        return index;
+    }
+
+    /** Records COMMIT's message in the index. */
+    void add(Commit commit) {
+        if (_ids.contains(commit.getOwnID())) {
+            return;
+        }
+        byte[] record = record(commit);
+        Journal.append(_file, record);
+        put(record);
+    }
+
+    /** Appends COMMIT's message to the journal of the current repository
+     *  without loading it; a repeated record is dropped when the journal
+     *  is read.  If the repository has no journal yet, it is built from
+     *  the commits, COMMIT included. */
+    static void append(Commit commit) {
+        if (MESSAGES.exists()) {
+            Journal.append(MESSAGES, record(commit));
+        } else {
+            load();
+        }
+    }
+
+    /** Returns the journal record of COMMIT: its binary id and then its
+     *  message in UTF-8. */
+    private static byte[] record(Commit commit) {
+        byte[] id = CommitGraph.toBytes(commit.getOwnID());
+        byte[] msg = commit.getMsg().getBytes(StandardCharsets.UTF_8);
+        byte[] record = Arrays.copyOf(id, id.length + msg.length);
+        System.arraycopy(msg, 0, record, id.length, msg.length);
+        return record;
+    }
+
+    /** Returns the ids of commits whose message is MESSAGE. */
+    List<String> exact(String message) {
+        List<String> ids = _byMessage.get(message);
+        return ids == null ? new ArrayList<>() : sorted(ids);
+    }
+
+    /** Returns the ids of commits whose message starts with PREFIX. */
+    List<String> prefix(String prefix) {
+        List<String> result = new ArrayList<>();
+        for (Map.Entry<String, List<String>> e
+                : _byMessage.tailMap(prefix, true).entrySet()) {
+            if (!e.getKey().startsWith(prefix)) {
+                break;
+            }
+            result.addAll(e.getValue());
+        }
+        return sorted(result);
+    }
+
+    /** Returns the ids of commits whose message contains TEXT. */
+    List<String> substring(String text) {
+        return matching(m -> m.contains(text));
+    }
+
+    /** Returns the ids of commits whose message matches REGEX anywhere. */
+    List<String> regex(Pattern regex) {
+        return matching(m -> regex.matcher(m).find());
+    }
+
+    private List<String> matching(Predicate<String> p) {
+        List<String> result = new ArrayList<>();
+        for (Map.Entry<String, List<String>> e : _byMessage.entrySet()) {
+            if (p.test(e.getKey())) {
+                result.addAll(e.getValue());
+            }
+        }
+        return sorted(result);
+    }
+
+    /** Adds the journal record RECORD to the in-memory maps. */
+    private void put(byte[] record) {
+        String id = CommitGraph.toHex(
+                Arrays.copyOf(record, CommitGraph.ID_BYTES));
+        String msg = new String(record, CommitGraph.ID_BYTES,
+                record.length - CommitGraph.ID_BYTES, StandardCharsets.UTF_8);
+        if (_ids.add(id)) {
+            _byMessage.computeIfAbsent(msg, k -> new ArrayList<>(1)).add(id);
+        }
+    }
+
+    /** Indexes every commit in the commits directory. */
+    private void rebuild() {
+        List<String> files = Utils.plainFilenamesIn(Reposotiry.COMMITS);
+        if (files == null) {
+            return;
+        }
+        for (String file : files) {
+            add(Reposotiry.readCommitHeader(
+                    file.substring(0, file.length() - ".txt".length())));
+        }
+    }
+
+    private static List<String> sorted(List<String> ids) {
+        List<String> result = new ArrayList<>(ids);
+        Collections.sort(result);
+        return result;
+    }
+}
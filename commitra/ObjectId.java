@@ -0,0 +1,63 @@
+package commitra;
+
+import java.nio.ByteBuffer;
+
+/** A SHA-1 id held as its 20 raw bytes, packed into three primitive
+ *  fields, for converting between the hex ids used in memory and the
+ *  binary ids stored in the index files.
+ */
+final class ObjectId {
+
+    /** Number of bytes in an id. */
+    static final int LENGTH = 20;
+
+    /** Bytes 0-7 of the id, big-endian.
+     */
+    private final long _w1;
+
+    /** Bytes 8-15 of the id, big-endian.
+     */
+    private final long _w2;
+
+    /** Bytes 16-19 of the id, big-endian.
+     */
+    private final int _w3;
+
+    private ObjectId(long w1, long w2, int w3) {
+        this._w1 = w1;
+        this._w2 = w2;
+        this._w3 = w3;
+    }
+
+    /** Returns the id written as the 40-digit hex numeral HEX. */
+    static ObjectId fromHex(String hex) {
+        if (hex.length() != Utils.UID_LENGTH) {
+            throw new IllegalArgumentException("not a full id: " + hex);
+        }
+        return new ObjectId(parse(hex, 0, 16), parse(hex, 16, 32),
+                (int) parse(hex, 32, 40));
+    }
+
+    /** Returns the bytes of this id. */
+    byte[] toBytes() {
+        return ByteBuffer.allocate(LENGTH).putLong(_w1).putLong(_w2)
+                .putInt(_w3).array();
+    }
+
+    @Override
+    public String toString() {
+        return Utils.toHex(toBytes());
+    }
+
+    private static long parse(String hex, int from, int to) {
+        long result = 0;
+        for (int i = from; i < to; i += 1) {
+            int digit = Character.digit(hex.charAt(i), 16);
+            if (digit < 0) {
+                throw new IllegalArgumentException("not a hex id: " + hex);
+            }
+            result = (result << 4) | digit;
+        }
+        return result;
+    }
+}
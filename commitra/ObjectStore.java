@@ -0,0 +1,391 @@
+package commitra;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/** Content-addressed storage for blobs.  The object with hash ABCDEF...
+ *  lives in OBJECTS/ab/cdef..., fanned out over 256 directories so no
+ *  single directory grows too large.  Each object file starts with one
+ *  byte naming the Codec its remaining bytes were written with.  Objects
+ *  that have been packed are read from the pack in OBJECTS/pack that the
+ *  file OBJECTS/pack/current names instead.
+ */
+class ObjectStore {
+
+    /** Ways an object's contents may be encoded on disk.
+     */
+    enum Codec {
+        /** Stored as is. */
+        NONE {
+            @Override
+            OutputStream encode(OutputStream out) {
+                return out;
+            }
+
+            @Override
+            InputStream decode(InputStream in) {
+                return in;
+            }
+        },
+        /** Compressed with java.util.zip.Deflater. */
+        DEFLATE {
+            @Override
+            OutputStream encode(OutputStream out) {
+                return new DeflaterOutputStream(out);
+            }
+
+            @Override
+            InputStream decode(InputStream in) {
+                return new InflaterInputStream(in);
+            }
+        };
+
+        /** Returns a stream that encodes what is written to it onto OUT. */
+        abstract OutputStream encode(OutputStream out);
+
+        /** Returns a stream that decodes the contents of IN. */
+        abstract InputStream decode(InputStream in);
+    }
+
+    /** Size of the buffer used when streaming object contents.
+     */
+    static final int BUFFER_SIZE = Utils.BUFFER_SIZE;
+
+    /** Directory holding the fan-out directories.
+     */
+    private final File _dir;
+
+    /** Name of the pack of repositories packed before packs were named
+     *  after their contents, which have no pointer file.
+     */
+    private static final String OLD_PACK = "pack";
+
+    /** Codec used for new objects.
+     */
+    private final Codec _codec;
+
+    /** The pack, null if not yet opened or if there is none.
+     */
+    private PackFile _pack;
+
+    /** Store of the current repository, null until first used.
+     */
+    private static ObjectStore _current;
+
+    ObjectStore(File dir, Codec codec) {
+        this._dir = dir;
+        this._codec = codec;
+    }
+
+    /** Returns the store of the current repository, migrating any objects
+     *  left in the old flat OBJECTS/<hash>.txt layout. */
+    static ObjectStore open() {
+        ObjectStore store =
+                new ObjectStore(Reposotiry.OBJECTS, Codec.DEFLATE);
+        store.migrate();
+        return store;
+    }
+
+    /** Returns the store of the current repository, opening it on first
+     *  use. */
+    static synchronized ObjectStore current() {
+        if (_current == null) {
+            _current = open();
+        }
+        return _current;
+    }
+
+    /** Forgets the store of the current repository, closing its pack, so
+     *  that the next call to current opens it again. */
+    static synchronized void reset() {
+        if (_current != null) {
+            _current.close();
+        }
+        _current = null;
+    }
+
+    /** Closes the pack, if it is open. */
+    private synchronized void close() {
+        if (_pack != null) {
+            _pack.close();
+            _pack = null;
+        }
+    }
+
+    /** Returns the file holding object HASH. */
+    File path(String hash) {
+        return Utils.join(_dir, hash.substring(0, 2), hash.substring(2));
+    }
+
+    /** Returns true iff object HASH is stored, loose or packed. */
+    boolean contains(String hash) {
+        return hash != null && (path(hash).isFile()
+                || (pack() != null && pack().contains(hash)));
+    }
+
+    /** Returns the directory holding packs. */
+    private File packDir() {
+        return Utils.join(_dir, "pack");
+    }
+
+    /** Returns the file naming the current pack, which a repack replaces
+     *  in one step to switch to its new pack. */
+    File packPointer() {
+        return Utils.join(packDir(), "current");
+    }
+
+    /** Returns the pack file named NAME. */
+    private File packFile(String name) {
+        return Utils.join(packDir(), name + ".pack");
+    }
+
+    /** Returns the index of the pack named NAME. */
+    private File packIndex(String name) {
+        return Utils.join(packDir(), name + ".idx");
+    }
+
+    /** Returns the name of the current pack, or null if there is none. */
+    private String packName() {
+        if (packPointer().isFile()) {
+            return Utils.readContentsAsString(packPointer()).trim();
+        }
+        return packIndex(OLD_PACK).isFile() ? OLD_PACK : null;
+    }
+
+    /** Returns the pack, or null if there is none. */
+    private synchronized PackFile pack() {
+        if (_pack == null) {
+            String name = packName();
+            if (name != null) {
+                _pack = new PackFile(packFile(name), packIndex(name));
+            }
+        }
+        return _pack;
+    }
+
+    /** Stores CONTENTS as object HASH unless it is already stored. */
+    void write(String hash, byte[] contents) {
+        if (!contains(hash)) {
+            store(hash, new ByteArrayInputStream(contents));
+        }
+    }
+
+    /** Stores the contents of FILE and returns their hash.  FILE is read
+     *  once, through a fixed-size buffer, while it is hashed and encoded
+     *  into a temporary file, which is then renamed to the object's path
+     *  (or discarded if the object is already stored). */
+    String writeFile(File file) {
+        File temp = Durability.tempFile(Utils.join(_dir, "incoming"));
+        MessageDigest md = Utils.sha1Digest();
+        try (InputStream in = Files.newInputStream(file.toPath());
+             OutputStream out = Files.newOutputStream(temp.toPath())) {
+            out.write(_codec.ordinal());
+            try (OutputStream encoded = _codec.encode(out)) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                    md.update(buffer, 0, n);
+                    encoded.write(buffer, 0, n);
+                }
+            }
+        } catch (IOException excp) {
+            temp.delete();
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        String hash = Utils.toHex(md.digest());
+        if (contains(hash)) {
+            temp.delete();
+            return hash;
+        }
+        path(hash).getParentFile().mkdirs();
+        Durability.commit(temp, path(hash));
+        return hash;
+    }
+
+    /** Returns a stream over the contents of object HASH. */
+    InputStream open(String hash) {
+        if (!path(hash).isFile() && pack() != null) {
+            byte[] packed = pack().read(hash);
+            if (packed != null) {
+                return new ByteArrayInputStream(packed);
+            }
+        }
+        try {
+            InputStream in = Files.newInputStream(path(hash).toPath());
+            int codec = in.read();
+            if (codec < 0 || codec >= Codec.values().length) {
+                in.close();
+                throw new IllegalArgumentException("corrupt object " + hash);
+            }
+            return Codec.values()[codec].decode(in);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Returns the contents of object HASH. */
+    byte[] read(String hash) {
+        try (InputStream in = open(hash)) {
+            return in.readAllBytes();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Returns the size of the contents of object HASH. */
+    long size(String hash) {
+        try (InputStream in = open(hash)) {
+            return in.transferTo(OutputStream.nullOutputStream());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Returns the contents of object HASH as a String. */
+    String readAsString(String hash) {
+        return new String(read(hash), StandardCharsets.UTF_8);
+    }
+
+    /** Writes the contents of object HASH to DEST, streaming them
+     *  through a fixed-size buffer into a temporary file beside DEST that
+     *  then replaces it. */
+    void copyTo(String hash, File dest) {
+        File temp = Durability.tempFile(dest);
+        try (InputStream in = open(hash);
+             OutputStream out = Files.newOutputStream(temp.toPath())) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                out.write(buffer, 0, n);
+            }
+        } catch (IOException excp) {
+            temp.delete();
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        try {
+            Files.move(temp.toPath(), dest.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            temp.delete();
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Returns the ids of all loose objects. */
+    List<String> looseIds() {
+        List<String> result = new ArrayList<>();
+        String[] fanout = _dir.list((dir, name) -> name.length() == 2);
+        if (fanout == null) {
+            return result;
+        }
+        for (String prefix : fanout) {
+            List<String> names =
+                    Utils.plainFilenamesIn(Utils.join(_dir, prefix));
+            for (String name : names) {
+                if (name.length() == Utils.UID_LENGTH - 2) {
+                    result.add(prefix + name);
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Moves every loose object, along with everything already packed,
+     *  into a new pack, switches to it and deletes the loose copies and
+     *  the old pack.  Does nothing if there are no loose objects.  NAMES
+     *  maps blob ids to the file names they were committed under, to
+     *  choose delta bases. */
+    void pack(Map<String, String> names) {
+        List<String> loose = looseIds();
+        if (loose.isEmpty()) {
+            return;
+        }
+        HashMap<String, Long> sizes = new HashMap<>();
+        PackFile old = pack();
+        if (old != null) {
+            for (int k = 0; k < old.size(); k += 1) {
+                String id = old.id(k);
+                sizes.put(id, size(id));
+            }
+        }
+        for (String id : loose) {
+            sizes.put(id, size(id));
+        }
+        packDir().mkdirs();
+        String name = PackFile.write(sizes, names, this::read, packDir());
+        Durability.replace(packPointer(),
+                name.getBytes(StandardCharsets.UTF_8));
+        synchronized (this) {
+            if (old != null) {
+                old.close();
+            }
+            _pack = null;
+        }
+        // The switch must be on disk before the old copies go.
+        Durability.flush();
+        for (File file : packDir().listFiles()) {
+            if (!file.equals(packPointer()) && !file.equals(packFile(name))
+                    && !file.equals(packIndex(name))) {
+                file.delete();
+            }
+        }
+        for (String id : loose) {
+            path(id).delete();
+            path(id).getParentFile().delete();
+        }
+    }
+
+    /** Moves every object stored as a flat OBJECTS/<hash>.txt file into
+     *  the fan-out layout, encoding it with this store's codec. */
+    void migrate() {
+        List<String> flat = Utils.plainFilenamesIn(_dir);
+        if (flat == null) {
+            return;
+        }
+        for (String name : flat) {
+            if (!name.endsWith(".txt")) {
+                continue;
+            }
+            File old = Utils.join(_dir, name);
+            String hash = name.substring(0, name.length() - ".txt".length());
+            if (!contains(hash)) {
+                try (InputStream in = Files.newInputStream(old.toPath())) {
+                    store(hash, in);
+                } catch (IOException excp) {
+                    throw new IllegalArgumentException(excp.getMessage());
+                }
+            }
+            old.delete();
+        }
+    }
+
+    /** Encodes the contents of IN into a temporary file and renames it
+     *  to object HASH, so a partly written object is never visible. */
+    private void store(String hash, InputStream in) {
+        File dest = path(hash);
+        dest.getParentFile().mkdirs();
+        File temp = Durability.tempFile(dest);
+        try (OutputStream out = Files.newOutputStream(temp.toPath())) {
+            out.write(_codec.ordinal());
+            try (OutputStream encoded = _codec.encode(out)) {
+                in.transferTo(encoded);
+            }
+        } catch (IOException excp) {
+            temp.delete();
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        Durability.commit(temp, dest);
+    }
+}
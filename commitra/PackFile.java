@@ -0,0 +1,439 @@
+package commitra;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/** A packfile: many objects in one file, each either stored whole or as
+ *  a delta against another object in the same pack, plus an index of
+ *  object ids sorted for binary search.  The index is read through a
+ *  memory-mapped buffer; entries are read from the pack at their 64-bit
+ *  offsets, so a pack may be larger than one buffer can map.  A pack and
+ *  its index are named after the SHA-1 of the ids they hold.
+ *
+ *  The pack holds a header (MAGIC, object count) and then one entry per
+ *  object: a type byte, for deltas the offset of the base entry, the
+ *  length of the deflated payload and the payload itself.  The index
+ *  holds IDX_MAGIC, the object count and then (20-byte id, 8-byte offset)
+ *  pairs in id order.
+ */
+class PackFile {
+
+    /** First four bytes of a pack. */
+    static final int MAGIC = 0x43504b31;
+
+    /** First four bytes of a pack index. */
+    static final int IDX_MAGIC = 0x43494431;
+
+    /** Entry type of an object stored whole. */
+    static final int FULL = 0;
+
+    /** Entry type of an object stored as a delta. */
+    static final int DELTA = 1;
+
+    /** Size of one index entry. */
+    private static final int IDX_ENTRY = CommitGraph.ID_BYTES + 8;
+
+    /** Number of preceding candidates tried as delta bases. */
+    static final int WINDOW = 10;
+
+    /** Longest allowed chain of deltas. */
+    static final int MAX_DEPTH = 16;
+
+    /** Length of the blocks matched between base and target. */
+    private static final int BLOCK = 16;
+
+    /** Delta op copying a range of the base. */
+    private static final int COPY = 1;
+
+    /** Delta op inserting literal bytes. */
+    private static final int INSERT = 0;
+
+    /** Size of an entry's type, base offset and payload length. */
+    private static final int ENTRY_HEADER = 1 + 8 + 4;
+
+    /** The open pack.
+     */
+    private final FileChannel _pack;
+
+    /** Mapped contents of the index.
+     */
+    private final MappedByteBuffer _index;
+
+    /** Number of objects in the pack.
+     */
+    private final int _count;
+
+    /** Opens the pack PACK with index INDEX. */
+    PackFile(File pack, File index) {
+        this._index = map(index);
+        try {
+            this._pack = FileChannel.open(pack.toPath(),
+                    StandardOpenOption.READ);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        if (read(0, 4).getInt(0) != MAGIC || _index.getInt(0) != IDX_MAGIC) {
+            close();
+            throw new IllegalArgumentException("corrupt pack " + pack);
+        }
+        this._count = _index.getInt(4);
+    }
+
+    /** Closes the pack. */
+    void close() {
+        try {
+            _pack.close();
+        } catch (IOException excp) {
+            return;
+        }
+    }
+
+    /** Returns the number of objects in this pack. */
+    int size() {
+        return _count;
+    }
+
+    /** Returns the id of the Kth object in id order. */
+    String id(int k) {
+        byte[] id = new byte[CommitGraph.ID_BYTES];
+        _index.get(8 + k * IDX_ENTRY, id);
+        return CommitGraph.toHex(id);
+    }
+
+    /** Returns true iff object HASH is in this pack. */
+    boolean contains(String hash) {
+        return offset(hash) >= 0;
+    }
+
+    /** Returns the contents of object HASH, or null if it is not in this
+     *  pack. */
+    byte[] read(String hash) {
+        long offset = offset(hash);
+        return offset < 0 ? null : readAt(offset, 0);
+    }
+
+    /** Returns the offset of object HASH's entry, found by binary search
+     *  over the index, or -1 if it is absent. */
+    private long offset(String hash) {
+        if (hash == null || hash.length() != Utils.UID_LENGTH) {
+            return -1;
+        }
+        byte[] key = CommitGraph.toBytes(hash);
+        int lo = 0, hi = _count - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int pos = 8 + mid * IDX_ENTRY;
+            int cmp = 0;
+            for (int i = 0; i < key.length && cmp == 0; i += 1) {
+                cmp = Integer.compare(_index.get(pos + i) & 0xff,
+                        key[i] & 0xff);
+            }
+            if (cmp == 0) {
+                return _index.getLong(pos + CommitGraph.ID_BYTES);
+            } else if (cmp < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return -1;
+    }
+
+    /** Returns the object whose entry starts at OFFSET, resolving deltas;
+     *  DEPTH guards against corrupt chains. */
+    private byte[] readAt(long offset, int depth) {
+        if (depth > MAX_DEPTH) {
+            throw new IllegalArgumentException("delta chain too long");
+        }
+        ByteBuffer header = read(offset, ENTRY_HEADER);
+        int type = header.get(0);
+        if (type == DELTA) {
+            long base = header.getLong(1);
+            byte[] data = inflate(read(offset + ENTRY_HEADER,
+                    header.getInt(9)).array());
+            return applyDelta(readAt(base, depth + 1), data);
+        }
+        return inflate(read(offset + 1 + 4, header.getInt(1)).array());
+    }
+
+    /** Returns up to LENGTH bytes of the pack from POSITION on, fewer only
+     *  at its end. */
+    private ByteBuffer read(long position, int length) {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        try {
+            while (buffer.hasRemaining() && _pack.read(buffer,
+                    position + buffer.position()) > 0) {
+                continue;
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return buffer;
+    }
+
+    /** Writes a pack holding the objects whose sizes SIZES maps their ids
+     *  to into directory DIR, with its index, each through a temporary
+     *  file, and returns the name shared by the two files.  The objects
+     *  are read one at a time from CONTENTS, keeping only the last WINDOW
+     *  in memory as delta bases.  NAMES maps ids to the file name they
+     *  were committed under, if known; objects with the same name and
+     *  similar size are tried as delta bases for each other. */
+    static String write(Map<String, Long> sizes, Map<String, String> names,
+                        Function<String, byte[]> contents, File dir) {
+        List<String> order = new ArrayList<>(sizes.keySet());
+        order.sort((x, y) -> {
+            int cmp = names.getOrDefault(x, "")
+                    .compareTo(names.getOrDefault(y, ""));
+            if (cmp != 0) {
+                return cmp;
+            }
+            return Long.compare(sizes.get(y), sizes.get(x));
+        });
+        List<String> sorted = new ArrayList<>(order);
+        sorted.sort(null);
+        MessageDigest md = Utils.sha1Digest();
+        for (String id : sorted) {
+            md.update(CommitGraph.toBytes(id));
+        }
+        String name = "pack-" + Utils.toHex(md.digest());
+        File pack = new File(dir, name + ".pack");
+        File index = new File(dir, name + ".idx");
+
+        HashMap<String, Long> offsets = new HashMap<>();
+        HashMap<String, Integer> depths = new HashMap<>();
+        LinkedHashMap<String, byte[]> window = new LinkedHashMap<>();
+        File packTemp = Durability.tempFile(pack);
+        File indexTemp = Durability.tempFile(index);
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(
+                        Files.newOutputStream(packTemp.toPath())))) {
+            out.writeInt(MAGIC);
+            out.writeInt(order.size());
+            long position = 8;
+            for (String id : order) {
+                byte[] target = contents.apply(id);
+                String base = null;
+                byte[] best = null;
+                for (Map.Entry<String, byte[]> e : window.entrySet()) {
+                    if (depths.get(e.getKey()) >= MAX_DEPTH) {
+                        continue;
+                    }
+                    byte[] delta = delta(e.getValue(), target);
+                    if (delta.length < target.length / 2
+                            && (best == null || delta.length < best.length)) {
+                        base = e.getKey();
+                        best = delta;
+                    }
+                }
+                offsets.put(id, position);
+                byte[] payload;
+                if (best == null) {
+                    depths.put(id, 0);
+                    payload = deflate(target);
+                    out.writeByte(FULL);
+                    position += 1;
+                } else {
+                    depths.put(id, depths.get(base) + 1);
+                    payload = deflate(best);
+                    out.writeByte(DELTA);
+                    out.writeLong(offsets.get(base));
+                    position += 1 + 8;
+                }
+                writePayload(out, payload);
+                position += 4 + payload.length;
+                window.put(id, target);
+                if (window.size() > WINDOW) {
+                    window.remove(window.keySet().iterator().next());
+                }
+            }
+        } catch (IOException excp) {
+            packTemp.delete();
+            indexTemp.delete();
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(
+                        Files.newOutputStream(indexTemp.toPath())))) {
+            out.writeInt(IDX_MAGIC);
+            out.writeInt(sorted.size());
+            for (String id : sorted) {
+                out.write(CommitGraph.toBytes(id));
+                out.writeLong(offsets.get(id));
+            }
+        } catch (IOException excp) {
+            packTemp.delete();
+            indexTemp.delete();
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+
+        Durability.commit(packTemp, pack);
+        Durability.commit(indexTemp, index);
+        return name;
+    }
+
+    private static void writePayload(DataOutputStream out, byte[] payload)
+            throws IOException {
+        out.writeInt(payload.length);
+        out.write(payload);
+    }
+
+    /** Returns a delta that turns BASE into TARGET: a sequence of COPY
+     *  (offset, length) and INSERT (length, bytes) ops, preceded by the
+     *  length of TARGET.  Matches are found by indexing BASE in
+     *  BLOCK-sized blocks and extending each hit forwards. */
+    static byte[] delta(byte[] base, byte[] target) {
+        HashMap<Integer, Integer> blocks = new HashMap<>();
+        for (int i = 0; i + BLOCK <= base.length; i += BLOCK) {
+            blocks.putIfAbsent(hashBlock(base, i), i);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeVarint(out, target.length);
+        int pending = 0;
+        int i = 0;
+        while (i < target.length) {
+            Integer at = i + BLOCK <= target.length
+                    ? blocks.get(hashBlock(target, i)) : null;
+            if (at != null && Arrays.equals(base, at, at + BLOCK,
+                    target, i, i + BLOCK)) {
+                int len = BLOCK;
+                while (at + len < base.length && i + len < target.length
+                        && base[at + len] == target[i + len]) {
+                    len += 1;
+                }
+                flushInsert(out, target, i - pending, pending);
+                pending = 0;
+                out.write(COPY);
+                writeVarint(out, at);
+                writeVarint(out, len);
+                i += len;
+            } else {
+                pending += 1;
+                i += 1;
+            }
+        }
+        flushInsert(out, target, i - pending, pending);
+        return out.toByteArray();
+    }
+
+    /** Returns the result of applying DELTA to BASE. */
+    static byte[] applyDelta(byte[] base, byte[] delta) {
+        int[] pos = {0};
+        byte[] result = new byte[readVarint(delta, pos)];
+        int len = 0;
+        while (pos[0] < delta.length) {
+            int op = delta[pos[0]++];
+            if (op == COPY) {
+                int from = readVarint(delta, pos);
+                int n = readVarint(delta, pos);
+                System.arraycopy(base, from, result, len, n);
+                len += n;
+            } else {
+                int n = readVarint(delta, pos);
+                System.arraycopy(delta, pos[0], result, len, n);
+                pos[0] += n;
+                len += n;
+            }
+        }
+        return result;
+    }
+
+    private static void flushInsert(ByteArrayOutputStream out, byte[] data,
+                                    int from, int len) {
+        if (len > 0) {
+            out.write(INSERT);
+            writeVarint(out, len);
+            out.write(data, from, len);
+        }
+    }
+
+    private static int hashBlock(byte[] data, int from) {
+        int h = 0;
+        for (int i = from; i < from + BLOCK; i += 1) {
+            h = 31 * h + data[i];
+        }
+        return h;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(byte[] data, int[] pos) {
+        int result = 0;
+        for (int shift = 0;; shift += 7) {
+            int b = data[pos[0]++];
+            result |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[ObjectStore.BUFFER_SIZE];
+        while (!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    private static byte[] inflate(byte[] data) {
+        Inflater inflater = new Inflater();
+        inflater.setInput(data);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[ObjectStore.BUFFER_SIZE];
+        try {
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && inflater.needsInput()) {
+                    throw new IllegalArgumentException("truncated pack entry");
+                }
+                out.write(buffer, 0, n);
+            }
+        } catch (DataFormatException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } finally {
+            inflater.end();
+        }
+        return out.toByteArray();
+    }
+
+    private static MappedByteBuffer map(File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+}
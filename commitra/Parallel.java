@@ -0,0 +1,85 @@
+package commitra;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/** Bounded parallel pipelines.  Work on each item runs on a fixed pool
+ *  of threads, while results are handed back on the calling thread in
+ *  the order of the items, so callers can apply them to structures that
+ *  are not thread-safe.  At most a fixed number of items are in flight
+ *  at once, which bounds the memory their results hold.
+ */
+class Parallel {
+
+    /** Number of items in flight per thread. */
+    private static final int DEPTH = 4;
+
+    /** Most threads used for work that mostly waits on the disk. */
+    private static final int IO_THREADS = 8;
+
+    /** Returns the default number of worker threads. */
+    static int threads() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /** Returns the number of worker threads for work that mostly waits
+     *  on the disk: a fixed number, however many processors there are,
+     *  enough to keep the disk busy without swamping it with requests. */
+    static int ioThreads() {
+        return IO_THREADS;
+    }
+
+    /** Calls WORK on each of ITEMS, using up to THREADS threads, and
+     *  passes each result, in the order of ITEMS, to APPLY on the calling
+     *  thread.  An exception thrown by WORK is rethrown here once the
+     *  items before it have been applied. */
+    static <T, R> void map(List<T> items, int threads, Function<T, R> work,
+                           Consumer<R> apply) {
+        if (threads <= 1 || items.size() <= 1) {
+            for (T item : items) {
+                apply.accept(work.apply(item));
+            }
+            return;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "commitra-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ArrayDeque<Future<R>> inFlight = new ArrayDeque<>();
+        try {
+            for (T item : items) {
+                if (inFlight.size() >= threads * DEPTH) {
+                    apply.accept(result(inFlight.remove()));
+                }
+                inFlight.add(pool.submit(() -> work.apply(item)));
+            }
+            while (!inFlight.isEmpty()) {
+                apply.accept(result(inFlight.remove()));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static <R> R result(Future<R> future) {
+        try {
+            return future.get();
+        } catch (ExecutionException excp) {
+            Throwable cause = excp.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalArgumentException(cause);
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+            throw new IllegalArgumentException(excp);
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package commitra;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/** Branch references.  A branch is a small file under refs holding the
+ *  id of its last commit, and HEAD is a symbolic reference naming the
+ *  current branch, so moving a branch rewrites 41 bytes no matter how
+ *  large its commit is.  Branches can also be packed into one sorted
+ *  packed-refs file of "id name" lines; a loose ref overrides a packed
+ *  one of the same name.
+ *
+ *  Every update goes through NAME.lock, created exclusively: the new
+ *  value is written to the lock file, checked against the value the
+ *  caller expected, and renamed over the ref, so concurrent updates
+ *  cannot interleave and a crash leaves the old value in place.
+ */
+class Refs {
+
+    /** Pathname to the directory of loose refs.
+     */
+    static final File REFS = new File(Reposotiry.COMMITRA
+            + File.separator + "refs");
+
+    /** Pathname to the packed refs file.
+     */
+    static final File PACKED = new File(Reposotiry.COMMITRA
+            + File.separator + "packed-refs");
+
+    /** Pathname to the symbolic reference to the current branch.
+     */
+    static final File HEAD = new File(Reposotiry.COMMITRA
+            + File.separator + "HEAD");
+
+    /** Prefix of a symbolic reference. */
+    private static final String SYMBOLIC = "ref: ";
+
+    /** Suffix of a lock file. */
+    private static final String LOCK = ".lock";
+
+    /** Packed refs by name, read on first use.
+     */
+    private TreeMap<String, String> _packed;
+
+    /** Creates the refs of a new repository whose only branch, NAME,
+     *  points at commit ID. */
+    static Refs init(String name, String id) {
+        REFS.mkdir();
+        Refs refs = new Refs();
+        refs.create(name, id);
+        refs.setHead(name);
+        return refs;
+    }
+
+    /** Returns true iff NAME can be used as a branch name. */
+    static boolean isValidName(String name) {
+        return !name.isEmpty() && !name.startsWith(".")
+                && !name.endsWith(LOCK) && !name.contains("/")
+                && !name.contains(File.separator)
+                && name.chars().noneMatch(Character::isWhitespace);
+    }
+
+    /** Returns the name of the current branch. */
+    String head() {
+        String contents = Utils.readContentsAsString(HEAD).trim();
+        if (!contents.startsWith(SYMBOLIC)) {
+            throw Utils.error("HEAD is not a symbolic ref.");
+        }
+        return contents.substring(SYMBOLIC.length());
+    }
+
+    /** Makes NAME the current branch. */
+    void setHead(String name) {
+        File lock = lock(HEAD);
+        write(lock, SYMBOLIC + name);
+        commit(lock, HEAD);
+    }
+
+    /** Returns the commit id branch NAME points at, or null if there is
+     *  no such branch, as there never is for an invalid name. */
+    String resolve(String name) {
+        if (!isValidName(name)) {
+            return null;
+        }
+        File loose = loose(name);
+        if (loose.isFile()) {
+            return Utils.readContentsAsString(loose).trim();
+        }
+        return packed().get(name);
+    }
+
+    boolean exists(String name) {
+        return resolve(name) != null;
+    }
+
+    /** Returns the names of all branches in sorted order. */
+    List<String> names() {
+        TreeMap<String, String> all = new TreeMap<>(packed());
+        List<String> loose = Utils.plainFilenamesIn(REFS);
+        if (loose != null) {
+            for (String name : loose) {
+                if (!name.endsWith(LOCK)) {
+                    all.put(name, "");
+                }
+            }
+        }
+        return new ArrayList<>(all.keySet());
+    }
+
+    /** Creates branch NAME pointing at ID.  Returns false, changing
+     *  nothing, if it already exists. */
+    boolean create(String name, String id) {
+        if (!isValidName(name)) {
+            throw Utils.error("Invalid branch name.");
+        }
+        File ref = loose(name);
+        File lock = lock(ref);
+        if (exists(name)) {
+            lock.delete();
+            return false;
+        }
+        write(lock, id);
+        commit(lock, ref);
+        return true;
+    }
+
+    /** Moves branch NAME from EXPECTED to ID, failing without change if
+     *  NAME no longer points at EXPECTED. */
+    void update(String name, String expected, String id) {
+        if (!isValidName(name)) {
+            throw Utils.error("Invalid branch name.");
+        }
+        File ref = loose(name);
+        File lock = lock(ref);
+        String current = resolve(name);
+        if (current == null || !current.equals(expected)) {
+            lock.delete();
+            throw Utils.error("Branch %s was changed by another command.",
+                    name);
+        }
+        write(lock, id);
+        commit(lock, ref);
+    }
+
+    /** Deletes branch NAME, loose and packed.  Returns false if there is
+     *  no such branch. */
+    boolean delete(String name) {
+        if (!isValidName(name)) {
+            return false;
+        }
+        File ref = loose(name);
+        File lock = lock(ref);
+        File packLock = null;
+        try {
+            boolean found = ref.delete();
+            if (packed().containsKey(name)) {
+                packLock = lock(PACKED);
+                _packed = null;
+                TreeMap<String, String> remaining = packed();
+                remaining.remove(name);
+                writePacked(packLock, remaining);
+                found = true;
+            }
+            return found;
+        } finally {
+            lock.delete();
+            if (packLock != null) {
+                packLock.delete();
+            }
+        }
+    }
+
+    /** Moves every loose ref into the packed refs file. */
+    void pack() {
+        File packLock = lock(PACKED);
+        _packed = null;
+        TreeMap<String, String> all = packed();
+        List<String> loose = Utils.plainFilenamesIn(REFS);
+        List<File> locks = new ArrayList<>();
+        try {
+            for (String name : loose == null ? List.<String>of() : loose) {
+                if (name.endsWith(LOCK)) {
+                    continue;
+                }
+                File ref = loose(name);
+                locks.add(lock(ref));
+                all.put(name, Utils.readContentsAsString(ref).trim());
+            }
+            writePacked(packLock, all);
+            for (String name : all.keySet()) {
+                loose(name).delete();
+            }
+        } finally {
+            for (File lock : locks) {
+                lock.delete();
+            }
+            packLock.delete();
+        }
+    }
+
+    /** Converts the serialized Branch files of an older repository into
+     *  refs and removes them.  Does nothing if there are none. */
+    static void upgrade() {
+        if (!Reposotiry.BRANCHES.isDirectory()) {
+            return;
+        }
+        File oldHead = Utils.join(Reposotiry.BRANCHES, "head.txt");
+        REFS.mkdir();
+        Refs refs = new Refs();
+        List<String> files = Utils.plainFilenamesIn(Reposotiry.BRANCHES);
+        for (String file : files == null ? List.<String>of() : files) {
+            File path = Utils.join(Reposotiry.BRANCHES, file);
+            if (!file.equals("head.txt")) {
+                Branch branch = Utils.readObject(path, Branch.class);
+                if (!refs.exists(branch.getName())) {
+                    refs.create(branch.getName(),
+                            branch.getLastCommit().getOwnID());
+                }
+            }
+        }
+        if (oldHead.isFile()) {
+            refs.setHead(Utils.readObject(oldHead, Branch.class).getName());
+        }
+        for (String file : files == null ? List.<String>of() : files) {
+            Utils.join(Reposotiry.BRANCHES, file).delete();
+        }
+        Reposotiry.BRANCHES.delete();
+    }
+
+    private static File loose(String name) {
+        return Utils.join(REFS, name);
+    }
+
+    private TreeMap<String, String> packed() {
+        if (_packed == null) {
+            _packed = new TreeMap<>();
+            if (PACKED.isFile()) {
+                for (String line
+                        : Utils.readContentsAsString(PACKED).split("\n")) {
+                    int space = line.indexOf(' ');
+                    if (space > 0) {
+                        _packed.put(line.substring(space + 1),
+                                line.substring(0, space));
+                    }
+                }
+            }
+        }
+        return _packed;
+    }
+
+    /** Writes REFS to the packed refs file through LOCK. */
+    private void writePacked(File lock, TreeMap<String, String> refs) {
+        StringBuilder contents = new StringBuilder();
+        for (Map.Entry<String, String> e : refs.entrySet()) {
+            contents.append(e.getValue()).append(' ')
+                    .append(e.getKey()).append('\n');
+        }
+        write(lock, contents.toString());
+        commit(lock, PACKED);
+        _packed = refs;
+    }
+
+    /** Creates and returns the lock file of REF, failing if another
+     *  command holds it. */
+    private static File lock(File ref) {
+        File lock = new File(ref.getPath() + LOCK);
+        try {
+            Files.createFile(lock.toPath());
+            return lock;
+        } catch (FileAlreadyExistsException excp) {
+            throw Utils.error("Unable to lock %s; another command may be "
+                    + "running.", ref.getName());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Writes CONTENTS to LOCK, ending it with a newline. */
+    private static void write(File lock, String contents) {
+        if (!contents.isEmpty() && !contents.endsWith("\n")) {
+            contents += "\n";
+        }
+        try {
+            Files.write(lock.toPath(),
+                    contents.getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE);
+        } catch (IOException excp) {
+            lock.delete();
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Renames LOCK over REF, releasing the lock. */
+    private static void commit(File lock, File ref) {
+        Durability.commit(lock, ref);
+    }
+}
@@ -0,0 +1,135 @@
+package commitra;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+
+/** The lock a command holds on the repository while it runs, so that
+ *  commands started at the same time, from several shells or scripts,
+ *  do not interleave their changes.  Commands that only read take it
+ *  shared and run alongside each other; the others take it exclusively.
+ *  It is an operating-system lock on the lock file, so it is released
+ *  when the process ends, however it ends, and no stale lock is ever
+ *  left behind.
+ *
+ *  A command waits for a lock held by another command, backing off from
+ *  MIN_WAIT to MAX_WAIT milliseconds between tries, for at most the time
+ *  given by the commitra.lockTimeout system property or the
+ *  COMMITRA_LOCK_TIMEOUT environment variable, in milliseconds.
+ */
+class RepoLock implements AutoCloseable {
+
+    /** Pathname to the lock file.
+     */
+    static final File LOCK = new File(Reposotiry.COMMITRA
+            + File.separator + "lock");
+
+    /** Default wait for a lock, in milliseconds. */
+    static final long DEFAULT_TIMEOUT = 10000;
+
+    /** Shortest and longest pause between tries, in milliseconds. */
+    private static final long MIN_WAIT = 1;
+    private static final long MAX_WAIT = 100;
+
+    /** The open lock file.
+     */
+    private final FileChannel _channel;
+
+    /** The lock held on it.
+     */
+    private final FileLock _lock;
+
+    private RepoLock(FileChannel channel, FileLock lock) {
+        this._channel = channel;
+        this._lock = lock;
+    }
+
+    /** Returns the lock of the repository in the current directory, taken
+     *  shared if SHARED and exclusively otherwise, waiting for other
+     *  commands to release it.  Throws a GitletException if they have not
+     *  within the timeout. */
+    static RepoLock acquire(boolean shared) {
+        long deadline = System.currentTimeMillis() + timeout();
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(LOCK.toPath(), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        try {
+            long wait = MIN_WAIT;
+            while (true) {
+                FileLock lock = channel.tryLock(0, Long.MAX_VALUE, shared);
+                if (lock != null) {
+                    return new RepoLock(channel, lock);
+                }
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    break;
+                }
+                Thread.sleep(Math.min(wait, left));
+                wait = Math.min(2 * wait, MAX_WAIT);
+            }
+        } catch (IOException | OverlappingFileLockException excp) {
+            close(channel);
+            throw new IllegalArgumentException(excp.getMessage());
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+        }
+        close(channel);
+        throw Utils.error("Unable to lock the repository; another command "
+                + "is running.");
+    }
+
+    /** Returns true iff opening the repository will rewrite it in a newer
+     *  format, or reading it will rebuild one of its indexes, which only a
+     *  command holding the lock exclusively may do. */
+    static boolean upgradePending() {
+        return Reposotiry.BRANCHES.isDirectory()
+                || Reposotiry.OLD_GLOBAL_LOG.exists()
+                || !CommitGraph.GRAPH.exists()
+                || !MessageIndex.MESSAGES.exists()
+                || CommitIndex.isStale()
+                || !BinaryFormat.FORMAT.exists()
+                || !Utils.readContentsAsString(BinaryFormat.FORMAT)
+                        .equals(BinaryFormat.VERSION);
+    }
+
+    /** Returns the wait for a lock, in milliseconds. */
+    private static long timeout() {
+        String value = System.getProperty("commitra.lockTimeout",
+                System.getenv("COMMITRA_LOCK_TIMEOUT"));
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException excp) {
+                return DEFAULT_TIMEOUT;
+            }
+        }
+        return DEFAULT_TIMEOUT;
+    }
+
+    /** Releases the lock. */
+    @Override
+    public void close() {
+        try {
+            _lock.release();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } finally {
+            close(_channel);
+        }
+    }
+
+    private static void close(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException excp) {
+            return;
+        }
+    }
+}
@@ -2,16 +2,29 @@ package commitra;
 
 
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
 import java.util.List;
 import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
 import java.util.TreeMap;
 import java.util.Date;
 import java.util.ArrayList;
-import java.util.Objects;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import static commitra.Utils.*;
 
@@ -29,16 +42,11 @@ public class Reposotiry implements Serializable {
     static final File COMMITS = new File(COMMITRA
             + File.separator + "commits");
 
-    /** Pathname to the Branches directory.
+    /** Pathname to the Branches directory of older repositories.
      */
     static final File BRANCHES = new File(COMMITRA
             + File.separator + "branches");
 
-    /** Pathname to the Head Branch text file.
-     */
-    static final File HEAD_BRANCH = new File(BRANCHES
-            + File.separator + "head.txt");
-
     /** Pathname to the Staging Area text file.
      */
     static final File STAGING_AREA = new File(COMMITRA
@@ -49,35 +57,82 @@ public class Reposotiry implements Serializable {
     static final File OBJECTS = new File(COMMITRA
             + File.separator + "objects");
 
-    /**Pathname to Global Log text file.
+    /**Pathname to the Global Log journal.
      */
     static final File GLOBAL_LOG = new File(COMMITRA
+            + File.separator + "global.log");
+
+    /**Pathname to the Global Log text file of older repositories.
+     */
+    static final File OLD_GLOBAL_LOG = new File(COMMITRA
             + File.separator + "global.txt");
 
-    /** Contains the current Head Branch.
+    /** Most candidates listed for an ambiguous commit id.
+     */
+    private static final int AMBIGUOUS_SHOWN = 10;
+
+    /** Number of decoded commits kept in memory. */
+    private static final int COMMIT_CACHE_SIZE = 256;
+
+    /** Recently read commits by id.  Commits never change once written,
+     *  so entries never go stale.  Only their headers are kept: callers
+     *  get copies, which read their files from the tree cache, so the
+     *  cache holds no file maps.
+     */
+    private static final Map<String, Commit> COMMIT_CACHE =
+        new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Commit> e) {
+                return size() > COMMIT_CACHE_SIZE;
+            }
+        };
+
+    /** Contains the current Head Branch, read on first use.
      */
     private Branch _headBranch;
 
-    /** Contains the current Head Commit.
+    /** Contains the current Head Commit, read on first use.
      */
     private Commit _head;
 
-    /** Contains the Staging Area.
+    /** Contains the Staging Area, read on first use.
      */
     private StagingArea _staging;
 
+    /** Contains the commit graph, loaded on first use.
+     */
+    private CommitGraph _graph;
+
+    /** Contains the commit message index, loaded on first use.
+     */
+    private MessageIndex _messages;
+
+    /** Contains the working file stat cache, loaded on first use.
+     */
+    private StatCache _stat;
+
+    /** Contains the working tree, opened on first use.
+     */
+    private WorkTree _work;
+
+    /** Contains the branch refs, opened on first use.
+     */
+    private Refs _refs;
+
     public Reposotiry() {
         this._CWD = new File(System.getProperty("user.dir"));
-        if (HEAD_BRANCH.exists()) {
-            this._headBranch = readObject(HEAD_BRANCH, Branch.class);
-            File head = new File(COMMITS + File.separator
-                    + this._headBranch.getLastCommit().getOwnID() + ".txt");
-            this._head = readObject(head, Commit.class);
-        }
-        if (STAGING_AREA.exists()) {
-            this._staging = readObject(STAGING_AREA, StagingArea.class);
+        if (COMMITRA.exists()) {
+            BinaryFormat.upgrade();
+            Refs.upgrade();
         }
+    }
 
+    /** The repository in the current directory, using STAT as its stat
+     *  cache instead of loading its own, so that a long-running process
+     *  can keep one cache across commands. */
+    Reposotiry(StatCache stat) {
+        this();
+        this._stat = stat;
     }
 
     public void init(String...args) throws IOException {
@@ -91,44 +146,33 @@ public class Reposotiry implements Serializable {
         }
 
         COMMITRA.mkdir();
+        writeContents(BinaryFormat.FORMAT, BinaryFormat.VERSION);
+
+        OBJECTS.mkdir();
+        Utils.join(COMMITRA, "objects");
 
-        Commit initial = new Commit("initial commit", "", new TreeMap<>(),
+        Commit initial = new Commit("initial commit", "",
+                Tree.write(getStore(), new TreeMap<>()),
                 "Wed Dec 31 16:00:00 1969 -0800");
         Branch branch = new Branch("master", initial);
         this._head = initial;
         this._headBranch = branch;
         this._staging = new StagingArea();
 
-        String log = initial.toString();
-        GLOBAL_LOG.createNewFile();
-        writeContents(GLOBAL_LOG, log + "\n");
-        OBJECTS.mkdir();
-        Utils.join(COMMITRA, "objects");
         COMMITS.mkdir();
         Utils.join(COMMITRA, ".commits");
-        BRANCHES.mkdir();
-        Utils.join(COMMITRA, ".branches");
 
-        STAGING_AREA.createNewFile();
-        writeObject(STAGING_AREA, this._staging);
+        this._staging.save();
         Utils.join(COMMITRA, ".staging");
 
-        File masterBranch = new File(BRANCHES
-                + File.separator + branch.getName() + ".txt");
-        masterBranch.createNewFile();
-        writeObject(masterBranch, branch);
-
-        HEAD_BRANCH.createNewFile();
-        writeObject(HEAD_BRANCH, branch);
-
-        Utils.join(BRANCHES, File.separator + "head.txt");
-        Utils.join(BRANCHES, File.separator + branch.getName() + ".txt");
+        this._refs = Refs.init(branch.getName(), initial.getOwnID());
 
         File initialCommit = new File(COMMITS
                 + File.separator + initial.getOwnID() + ".txt");
         initialCommit.createNewFile();
         writeObject(initialCommit, initial);
         Utils.join(COMMITS, initial.getOwnID());
+        recordCommit(initial);
 
     }
 
@@ -136,33 +180,108 @@ public class Reposotiry implements Serializable {
         if (!commitraExists()) {
             return;
         }
-        if (helper(2, args)) {
+        List<String> operands = new ArrayList<>(List.of(args));
+        boolean stats = operands.remove("--stats");
+        boolean intent = operands.remove("-N");
+        if (operands.size() < 2) {
+            System.out.println("Incorrect Operands.");
             return;
         }
-        String fileName = args[1];
-        File curr = new File(_CWD + File.separator + fileName);
-        if (!curr.exists()) {
-            System.out.println("File does not exist.");
-        } else {
-            byte[] contents = readContents(curr);
-            String hash = sha1(contents);
-            if (getHeadCommit().getObjects().get(fileName) != null
-                    && getHeadCommit().getObjects().get(fileName).equals(hash)) {
-                if (getStage().getRemoveFiles().contains(fileName)) {
-                    getStage().getRemoveFiles().remove(fileName);
-                    writeObject(STAGING_AREA, getStage());
+        TreeSet<String> paths = new TreeSet<>();
+        for (String operand : operands.subList(1, operands.size())) {
+            if (!addPaths(operand, paths)) {
+                System.out.println("File does not exist.");
+                return;
+            }
+        }
+
+        TreeMap<String, String> tracked = getHeadCommit().getObjects();
+        if (intent) {
+            for (String fileName : paths) {
+                if (!tracked.containsKey(fileName)
+                        && getStage().state(fileName) == null) {
+                    getStage().addIntent(fileName);
                 }
-            } else {
-                getStage().getRemoveFiles().remove(fileName);
-                File object = new File(OBJECTS + File.separator + hash + ".txt");
-                object.createNewFile(); 
-                writeContents(object, contents);
-                getStage().add(fileName, hash);
-                writeObject(STAGING_AREA, getStage());
             }
+            saveStage();
+            return;
+        }
+
+        long start = System.nanoTime();
+        long[] bytes = new long[1];
+        WorkTree work = getWorkTree();
+        StatCache stat = getStatCache();
+        ObjectStore store = getStore();
+        Parallel.map(new ArrayList<>(paths), Parallel.threads(),
+            fileName -> {
+                File curr = work.file(fileName);
+                String hash = stat.hash(fileName, curr);
+                if (hash != null && !hash.equals(tracked.get(fileName))
+                        && !store.contains(hash)) {
+                    hash = store.writeFile(curr);
+                }
+                return new String[] {fileName, hash};
+            },
+            result -> {
+                String fileName = result[0];
+                String hash = result[1];
+                if (hash == null) {
+                    return;
+                }
+                bytes[0] += work.file(fileName).length();
+                if (hash.equals(tracked.get(fileName))) {
+                    getStage().unstage(fileName);
+                } else {
+                    getStage().add(fileName, hash);
+                }
+            });
+        saveStage();
+        if (stats) {
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("Added %d files, %.1f MB in %.3f s "
+                    + "(%.1f MB/s, %.1f files/s)%n", paths.size(),
+                    bytes[0] / 1e6, seconds, bytes[0] / 1e6 / seconds,
+                    paths.size() / seconds);
         }
     }
 
+    /** Adds to PATHS the working files named by OPERAND of add: a file,
+     *  a directory, whose files below it are added unless ignored, or a
+     *  glob pattern matched against paths from the root.  Returns false
+     *  if OPERAND names nothing. */
+    private boolean addPaths(String operand, TreeSet<String> paths) {
+        if (operand.matches(".*[*?\\[{].*")) {
+            String pattern = getWorkTree().normalize(operand);
+            if (pattern == null) {
+                return false;
+            }
+            PathMatcher matcher = FileSystems.getDefault()
+                    .getPathMatcher("glob:" + pattern);
+            int dirEnd = pattern.replaceAll("[*?\\[{].*", "")
+                    .lastIndexOf('/');
+            String dir = dirEnd < 0 ? "" : pattern.substring(0, dirEnd);
+            List<String> found = getWorkTree().files(dir,
+                path -> matcher.matches(Paths.get(path)));
+            paths.addAll(found);
+            return !found.isEmpty();
+        }
+        String path = getWorkTree().normalize(operand);
+        File file = path == null ? null : getWorkTree().file(path);
+        if (file == null || !file.exists()) {
+            return false;
+        } else if (file.isDirectory()) {
+            paths.addAll(getWorkTree().files(path, p -> true));
+        } else {
+            paths.add(path);
+        }
+        return true;
+    }
+
+    /** Saves the changes made to the staging area. */
+    private void saveStage() {
+        getStage().save();
+    }
+
     public void commit(String...args) throws IOException {
         if (!commitraExists()) {
             return;
@@ -170,8 +289,7 @@ public class Reposotiry implements Serializable {
         if (helper(2, args)) {
             return;
         }
-        if (getStage().getAddFiles().isEmpty()
-                && getStage().getRemoveFiles().isEmpty()) {
+        if (getStage().isEmpty()) {
             System.out.println("No changes added to the commit.");
             return;
         } else if (args[1].equals("")) {
@@ -180,20 +298,11 @@ public class Reposotiry implements Serializable {
         }
 
         String msg = args[1];
-        @SuppressWarnings("unchecked")
-        TreeMap<String, String> newBlobs =
-                (TreeMap<String, String>) getHeadCommit().getObjects().clone();
-
-        for (String x : _staging.getRemoveFiles()) {
-            newBlobs.remove(x);
-        }
-
-        for (String x: getStage().getAddFiles().keySet()) {
-            newBlobs.put(x, getStage().getAddFiles().get(x));
-        }
+        String tree = Tree.update(getStore(), getHeadCommit().getTree(),
+                getStage().getAddFiles(), getStage().getRemoveFiles());
 
         getStage().clear();
-        writeObject(STAGING_AREA, getStage());
+        saveStage();
 
         SimpleDateFormat formatter =
                 new SimpleDateFormat("EEE MMM dd HH:mm:ss yyyy Z");
@@ -202,22 +311,25 @@ public class Reposotiry implements Serializable {
 
         Commit child =
                 new Commit(msg, getBranch().getLastCommit().getOwnID(),
-                        newBlobs, date);
-        this._head = child;
-        getBranch().changeLastCommit(child);
+                        tree, date);
 
         File childCommit = new File(COMMITS
                 + File.separator + child.getOwnID() + ".txt");
         childCommit.createNewFile();
         writeObject(childCommit, child);
-        writeContents(GLOBAL_LOG,
-                readContentsAsString(GLOBAL_LOG) + child + "\n");
+        recordCommit(child);
         Utils.join(COMMITS, child.getOwnID());
 
-        writeObject(HEAD_BRANCH, getBranch());
-        writeObject(new File(BRANCHES + File.separator
-                        + getBranch().getName() + ".txt"), getBranch());
+        moveBranch(child);
+
+    }
 
+    /** Points the current branch, and so HEAD, at COMMIT. */
+    private void moveBranch(Commit commit) {
+        getRefs().update(getBranch().getName(),
+                getBranch().getLastCommit().getOwnID(), commit.getOwnID());
+        getBranch().changeLastCommit(commit);
+        this._head = commit;
     }
 
     public void switchBranch(String...args) throws IOException {
@@ -229,15 +341,12 @@ public class Reposotiry implements Serializable {
             return;
         }
 
-        String branchName = args[1] + ".txt";
-        List<String> files = plainFilenamesIn(BRANCHES);
-        File branch = new File(BRANCHES
-                + File.separator + branchName);
-        if (!files.contains(branchName)) {
+        String id = getRefs().resolve(args[1]);
+        if (id == null) {
             System.out.println("No such branch exists.");
             return;
         }
-        Branch givenBranch = readObject(branch, Branch.class);
+        Branch givenBranch = new Branch(args[1], readCommit(id));
         if (givenBranch.getName().equals(getBranch().getName())) {
             System.out.println("No need to checkout the current branch.");
             return;
@@ -248,33 +357,24 @@ public class Reposotiry implements Serializable {
 
     public void _switchBranch(Branch givenBranch) throws IOException {
         Branch curr = getBranch();
-        List<String> cwdFiles = plainFilenamesIn(_CWD);
         if (!checkIfUntracked(getHeadCommit(), givenBranch.getLastCommit())) {
             return;
         }
         Commit given = givenBranch.getLastCommit();
-        assert cwdFiles != null;
-        for (String filename : cwdFiles) {
-            if (curr.getLastCommit().getObjects().containsKey(filename)
-                    && !given.getObjects().containsKey(filename)) {
-                File currFile = new File(_CWD + File.separator + filename);
-                restrictedDelete(currFile);
-            }
-        }
 
+        if (curr.getName().equals(givenBranch.getName())) {
+            getRefs().update(curr.getName(),
+                    curr.getLastCommit().getOwnID(), given.getOwnID());
+        } else {
+            getRefs().setHead(givenBranch.getName());
+        }
         this._headBranch = givenBranch;
-        writeObject(HEAD_BRANCH, getBranch());
-        writeObject(new File(BRANCHES + File.separator
-                + getBranch().getName() + ".txt"), getBranch());
         this._head = getBranch().getLastCommit();
-
-        for (String filename: getHeadCommit().getObjects().keySet()) {
-            checkout(filename);
-        }
+        checkoutCommit(curr.getLastCommit(), given);
 
         if (!curr.getName().equals(getBranch().getName())) {
             getStage().clear();
-            writeObject(STAGING_AREA, getStage());
+            saveStage();
         }
 
 
@@ -293,9 +393,9 @@ public class Reposotiry implements Serializable {
         }
 
         if (args.length == 3) {
-            checkout(args[2]);
+            checkout(pathArg(args[2]));
         } else if (args.length == 4) {
-            checkout(args[3], args[1]);
+            checkout(pathArg(args[3]), args[1]);
         } 
     }
 
@@ -308,13 +408,11 @@ public class Reposotiry implements Serializable {
             System.out.println("File does not exist in that commit.");
             return;
         }
-        File headVersion = new File(OBJECTS + File.separator
-                + getHeadCommit().getObjects().get(filename) + ".txt");
-        File curr = new File(_CWD + File.separator + filename);
-        if (!curr.exists()) {
-            curr.createNewFile();
-        }
-        writeContents(curr, readContents(headVersion));
+        File curr = getWorkTree().file(filename);
+        String hash = getHeadCommit().getObjects().get(filename);
+        getWorkTree().makeParents(filename);
+        getStore().copyTo(hash, curr);
+        getStatCache().update(filename, curr, hash);
 
     }
 
@@ -323,37 +421,49 @@ public class Reposotiry implements Serializable {
             return;
         }
 
-        commitID = findCommitID(commitID);
-
-        File commit = new File(COMMITS
-                + File.separator + commitID);
-
-        if (!commit.exists()) {
-            System.out.println("No commit with that id exists.");
+        commitID = resolveCommit(commitID);
+        if (commitID == null) {
             return;
         }
 
-        Commit given = readObject(commit, Commit.class);
+        Commit given = readCommit(commitID);
         Commit temp = getHeadCommit();
         this._head = given;
         checkout(filename);
         this._head = temp;
     }
 
-    private String findCommitID(String commitID) {
-        List<String> commits = plainFilenamesIn(COMMITS);
-        commitID = commitID.substring(0, 5);
-        assert commits != null;
-        for (String file : commits) {
-            String curr = file.substring(0, 5);
-            if (curr.equals(commitID)) {
-                return file;
+    /** Returns the full id of the commit that NAME, an id or a unique
+     *  prefix of at least CommitIndex.MIN_PREFIX digits, names, or prints
+     *  why there is none and returns null. */
+    private String resolveCommit(String name) {
+        if (name.length() < CommitIndex.MIN_PREFIX) {
+            System.out.println("Commit ids must have at least "
+                    + CommitIndex.MIN_PREFIX + " characters.");
+            return null;
+        }
+        if (!CommitIndex.isValidPrefix(name)) {
+            System.out.println("No commit with that id exists.");
+            return null;
+        }
+        if (!CommitGraph.GRAPH.exists()) {
+            getGraph();
+        }
+        List<String> ids = new CommitIndex().find(name, AMBIGUOUS_SHOWN);
+        if (ids.isEmpty()) {
+            System.out.println("No commit with that id exists.");
+            return null;
+        } else if (ids.size() > 1) {
+            System.out.println("Commit id " + name + " is ambiguous; it "
+                    + "matches:");
+            for (String id : ids) {
+                System.out.println("  " + id);
             }
+            return null;
         }
-        return "bad";
+        return ids.get(0);
     }
 
-
     public void remove(String...args) {
         if (!commitraExists()) {
             return;
@@ -361,17 +471,15 @@ public class Reposotiry implements Serializable {
         if (helper(2, args)) {
             return;
         }
-        String filename = args[1];
-        File curr = new File(_CWD + File.separator + filename);
+        String filename = pathArg(args[1]);
 
         if (getHeadCommit().getObjects().containsKey(filename)) {
-            restrictedDelete(curr);
+            getWorkTree().delete(filename);
             getStage().addRemove(filename);
-            getStage().getAddFiles().remove(filename);
-            writeObject(STAGING_AREA, getStage());
-        } else if (getStage().getAddFiles().containsKey(filename)) {
-            getStage().getAddFiles().remove(filename);
-            writeObject(STAGING_AREA, getStage());
+            saveStage();
+        } else if (getStage().state(filename) != null) {
+            getStage().unstage(filename);
+            saveStage();
         } else {
             System.out.println("No reason to remove the file.");
         }
@@ -381,19 +489,23 @@ public class Reposotiry implements Serializable {
         if (!commitraExists()) {
             return;
         }
-        if (helper(1, args)) {
+        if (args.length != 1 && args.length != 2) {
+            System.out.println("Incorrect Operands.");
             return;
         }
-        Commit curr = getHeadCommit();
-        while (curr != null) {
-            System.out.println(curr);
-            File nextCommit = new File(COMMITS + File.separator
-                    + curr.getParentID() + ".txt");
-            if (nextCommit.exists()) {
-                curr = readObject(nextCommit, Commit.class);
-            } else {
-                curr = null;
+        Commit start = getHeadCommit();
+        if (args.length == 2) {
+            String id = resolveCommit(args[1]);
+            if (id == null) {
+                return;
             }
+            start = readCommitHeader(id);
+        }
+        System.out.println(start);
+        CommitGraph.Node curr = getGraph().get(start.getOwnID());
+        while (curr != null && curr.hasParent()) {
+            System.out.println(readCommitHeader(curr.parent));
+            curr = getGraph().get(curr.parent);
         }
     }
 
@@ -404,35 +516,170 @@ public class Reposotiry implements Serializable {
         if (helper(1, args)) {
             return;
         }
-        System.out.println(readContentsAsString(GLOBAL_LOG));
+        migrateGlobalLog();
+        Journal.forEach(GLOBAL_LOG,
+            record -> System.out.write(record, 0, record.length));
+        System.out.println();
+    }
+
+    /** Adds the newly written COMMIT to the commit graph, the global log
+     *  and the message index, appending to their files without loading
+     *  the graph or the index unless this command already has. */
+    private void recordCommit(Commit commit) {
+        if (this._graph != null) {
+            this._graph.add(commit);
+        } else {
+            CommitGraph.append(commit);
+        }
+        migrateGlobalLog();
+        Journal.append(GLOBAL_LOG, commit + "\n");
+        if (this._messages != null) {
+            this._messages.add(commit);
+        } else {
+            MessageIndex.append(commit);
+        }
+    }
+
+    /** Moves an older repository's text global log into the journal as
+     *  its first record.  Nothing is appended before this runs, so if the
+     *  journal already exists the move was interrupted after copying. */
+    private static void migrateGlobalLog() {
+        if (OLD_GLOBAL_LOG.exists()) {
+            if (!GLOBAL_LOG.exists()) {
+                Journal.append(GLOBAL_LOG, readContents(OLD_GLOBAL_LOG));
+            }
+            OLD_GLOBAL_LOG.delete();
+        }
     }
 
     public void find(String...args) {
         if (!commitraExists()) {
             return;
         }
-        if (helper(2, args)) {
+        List<String> found;
+        if (args.length == 2) {
+            found = getMessages().exact(args[1]);
+        } else if (args.length != 3) {
+            System.out.println("Incorrect Operands.");
             return;
-        }
-        List<String> commitNames = plainFilenamesIn(COMMITS);
-        int count = 0;
-        String message = args[1];
-        assert commitNames != null;
-        for (String commit: commitNames) {
-            Commit curr = readObject(new File(COMMITS + File.separator
-                    + commit), Commit.class);
-            if (curr.getMsg().equals(message)) {
-                count++;
-                System.out.println(curr.getOwnID());
+        } else if (args[1].equals("--prefix")) {
+            found = getMessages().prefix(args[2]);
+        } else if (args[1].equals("--contains")) {
+            found = getMessages().substring(args[2]);
+        } else if (args[1].equals("--regex")) {
+            try {
+                found = getMessages().regex(Pattern.compile(args[2]));
+            } catch (PatternSyntaxException excp) {
+                System.out.println("Invalid regular expression.");
+                return;
             }
+        } else {
+            System.out.println("Incorrect Operands.");
+            return;
         }
 
-        if (count == 0) {
+        for (String id : found) {
+            System.out.println(id);
+        }
+        if (found.isEmpty()) {
             System.out.println("Found no commit with that message.");
         }
 
     }
 
+    /** Shows changes to file contents as unified diffs: with no
+     *  operands, from the staging area to the working tree; with
+     *  --staged, from the head commit to the staging area; and with two
+     *  commits or branches, from the first to the second.  Files whose
+     *  blob hashes match are skipped without being read. */
+    public void diff(String...args) throws IOException {
+        if (!commitraExists()) {
+            return;
+        }
+        OutputStream out = new BufferedOutputStream(System.out,
+                ObjectStore.BUFFER_SIZE);
+        if (args.length == 1) {
+            diffWorkTree(out);
+        } else if (args.length == 2 && args[1].equals("--staged")) {
+            diffStaged(out);
+        } else if (args.length == 3) {
+            Commit from = commitArg(args[1]);
+            Commit to = from == null ? null : commitArg(args[2]);
+            if (to == null) {
+                return;
+            }
+            Tree.diff(getStore(), from.getTree(), to.getTree(),
+                (path, old, now) -> writeDiff(path, old, blob(now), out));
+        } else {
+            System.out.println("Incorrect Operands.");
+            return;
+        }
+        out.flush();
+    }
+
+    /** Writes to OUT the diff of each file from the version the staging
+     *  area holds, or the head commit if it is not staged, to the working
+     *  tree. */
+    private void diffWorkTree(OutputStream out) {
+        TreeMap<String, String> index =
+                new TreeMap<>(getHeadCommit().getObjects());
+        for (Map.Entry<String, StagingArea.Entry> e
+                : getStage().entries().entrySet()) {
+            if (e.getValue().state == StagingArea.State.REMOVE) {
+                index.remove(e.getKey());
+            } else {
+                index.put(e.getKey(), e.getValue().hash);
+            }
+        }
+        for (Map.Entry<String, String> e : index.entrySet()) {
+            String path = e.getKey();
+            File file = getWorkTree().file(path);
+            if (!file.isFile()) {
+                writeDiff(path, e.getValue(), null, out);
+            } else if (e.getValue() == null || !e.getValue().equals(
+                    getStatCache().hash(path, file))) {
+                writeDiff(path, e.getValue(), readContents(file), out);
+            }
+        }
+    }
+
+    /** Writes to OUT the diff of each staged file from the head commit to
+     *  the staging area. */
+    private void diffStaged(OutputStream out) {
+        TreeMap<String, String> head = getHeadCommit().getObjects();
+        for (Map.Entry<String, StagingArea.Entry> e
+                : getStage().entries().entrySet()) {
+            String path = e.getKey();
+            String now = e.getValue().hash;
+            if (e.getValue().state == StagingArea.State.INTENT
+                    || Objects.equals(head.get(path), now)) {
+                continue;
+            }
+            writeDiff(path, head.get(path), blob(now), out);
+        }
+    }
+
+    /** Writes to OUT the diff of PATH from blob OLD, or nothing if OLD is
+     *  null, to contents NOW, or nothing if NOW is null. */
+    private void writeDiff(String path, String old, byte[] now,
+                           OutputStream out) {
+        try {
+            Diff.unified(path, blob(old), now, out);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Returns the commit named by NAME, a branch or an abbreviated
+     *  commit id, or prints why there is none and returns null. */
+    private Commit commitArg(String name) {
+        String id = getRefs().resolve(name);
+        if (id == null) {
+            id = resolveCommit(name);
+        }
+        return id == null ? null : readCommit(id);
+    }
+
     public void status(String... args) { 
         if (!commitraExists()) {
             return;
@@ -441,16 +688,11 @@ public class Reposotiry implements Serializable {
             return;
         }
     
-        List<String> branches = plainFilenamesIn(BRANCHES);
-        Collections.sort(branches);
+        List<String> branches = getRefs().names();
     
-        List<String> addFiles = new ArrayList<>();
-        addFiles.addAll(getStage().getAddFiles().keySet());
-        Collections.sort(addFiles);
-    
-        List<String> removeFiles = new ArrayList<>();
-        removeFiles.addAll(getStage().getRemoveFiles());
-        Collections.sort(removeFiles);
+        List<String> addFiles =
+                new ArrayList<>(getStage().getAddFiles().keySet());
+        List<String> removeFiles = getStage().getRemoveFiles();
     
         // Get the current branch and its commit
         Branch currentBranch = getBranch();
@@ -458,16 +700,15 @@ public class Reposotiry implements Serializable {
         // Get files that are modified but not staged
         List<String> modifiedFilesNotStaged = getModifications();
 
-        // Get untracked files (files in CWD but not in head commit)
+        // Get untracked files (files in the working tree but not in head commit)
         List<String> untrackedFiles = getUntrackedFilesCWD();
 
         // Print the status output
         System.out.println("=== Branches ===");
         System.out.println("*" + currentBranch.getName());
         for (String branch : branches) {
-            Branch curr = readObject(new File(BRANCHES + File.separator + branch), Branch.class);
-            if (!curr.getName().equals(currentBranch.getName())) {
-                System.out.println(curr.getName());
+            if (!branch.equals(currentBranch.getName())) {
+                System.out.println(branch);
             }
         }
         
@@ -498,46 +739,39 @@ public class Reposotiry implements Serializable {
         }
     }   
 
-    public ArrayList<String> getUntrackedFilesCWD() {
-        ArrayList<String> untracked = new ArrayList<>();
-        File[] cwdFiles = _CWD.listFiles();
-    
-        for (File file : cwdFiles) {
-            String fileName = file.getName();
-            boolean isTracked = false;
-    
-            // Check if file is tracked
-            Commit lastCommit = getHeadCommit();
-            if (lastCommit.getObjects() != null && lastCommit.getObjects().containsKey(fileName)) {
-                isTracked = true;
-            }
-    
-            // Check if file is staged
-            if (_staging.getAddFiles().containsKey(fileName)) {
-                isTracked = true;
-            }
-    
-            // If not tracked or staged, add to untracked
-            if (!isTracked && !file.isDirectory()) {
-                untracked.add(fileName);
-            }
-        }
-        
-        return untracked;
+    /** Returns the files of the working tree, at any depth, that are
+     *  neither tracked in the head commit nor staged to be added, now or
+     *  later, in path order. */
+    public List<String> getUntrackedFilesCWD() {
+        TreeMap<String, String> tracked = getHeadCommit().getObjects();
+        StagingArea stage = getStage();
+        return getWorkTree().files(path -> !tracked.containsKey(path)
+                && (stage.state(path) == null || stage.isRemoved(path)));
     }
-    
 
     public ArrayList<String> getModifications() {
         ArrayList<String> modifications = new ArrayList<>();
         // check modifications in staging area
-        for (String fileName : _staging.getAddFiles().keySet()) {
-            File file = new File(_CWD + File.separator + fileName);
-            String stagedHash = _staging.getAddFiles().get(fileName);
+        for (Map.Entry<String, StagingArea.Entry> e
+                : getStage().entries().entrySet()) {
+            String fileName = e.getKey();
+            File file = getWorkTree().file(fileName);
+            if (e.getValue().state == StagingArea.State.REMOVE) {
+                if (file.exists()) {
+                    modifications.add(fileName + " (added)");
+                }
+                continue;
+            } else if (e.getValue().state == StagingArea.State.INTENT) {
+                modifications.add(fileName
+                        + (file.exists() ? " (new)" : " (deleted)"));
+                continue;
+            }
+            String stagedHash = e.getValue().hash;
     
             if (!file.exists()) {
                 modifications.add(fileName + " (deleted)");
             } else {
-                String currentHash = Utils.sha1(Utils.readContents(file));
+                String currentHash = getStatCache().hash(fileName, file);
                 StringBuilder sh = new StringBuilder(stagedHash);
                 StringBuilder ch = new StringBuilder(currentHash);
                 if (!sh.toString().equals(ch.toString())) {
@@ -545,28 +779,21 @@ public class Reposotiry implements Serializable {
                 }
             }
         }
-        ArrayList<String> removed_file = _staging.getRemoveFiles();
-        for(String fileName : removed_file){
-            File file = new File(_CWD + File.separator + fileName);
-            if(file.exists()){
-                modifications.add(fileName + " (added)");
-            }
-        }
 
         // check modifications in the tracked files
         Commit lastCommit = getHeadCommit();
         if (lastCommit.getObjects() != null) {
             for (String fileName : lastCommit.getObjects().keySet()) {
-                File file = new File(_CWD + File.separator + fileName);
+                File file = getWorkTree().file(fileName);
                 if (!file.exists()) {
-                   if(!removed_file.contains(fileName))
+                   if(!getStage().isRemoved(fileName))
                     modifications.add(fileName + " (deleted)");
                 } else {
-                    String currentHash = Utils.sha1(Utils.readContents(file));
+                    String currentHash = getStatCache().hash(fileName, file);
                     String lastCommitHash = lastCommit.getObjects().get(fileName);
                     StringBuilder lh = new StringBuilder(lastCommitHash);
                     StringBuilder ch = new StringBuilder(currentHash);
-                    if (!lh.toString().equals(ch.toString()) && !_staging.getAddFiles().containsKey(fileName)) {
+                    if (!lh.toString().equals(ch.toString()) && !getStage().isAdded(fileName)) {
                         modifications.add(fileName + " (modified)");
                     }
                 }
@@ -584,15 +811,13 @@ public class Reposotiry implements Serializable {
             return;
         }
         String name = args[1];
-        File newBranchFile = new File(BRANCHES + File.separator
-                + name + ".txt");
-        if (newBranchFile.exists()) {
-            System.out.println("A branch with that name already exists.");
+        if (!Refs.isValidName(name)) {
+            System.out.println("Invalid branch name.");
             return;
         }
-        newBranchFile.createNewFile();
-        Branch newBranch = new Branch(name, getHeadCommit());
-        writeObject(newBranchFile, newBranch);
+        if (!getRefs().create(name, getHeadCommit().getOwnID())) {
+            System.out.println("A branch with that name already exists.");
+        }
     }
 
     public void removeBranch(String...args) {
@@ -602,19 +827,16 @@ public class Reposotiry implements Serializable {
         if (helper(2, args)) {
             return;
         }
-        String filename = args[1] + ".txt";
-        File branch = new File(BRANCHES
-                + File.separator + filename);
-        if (!branch.exists()) {
+        String name = args[1];
+        if (!getRefs().exists(name)) {
             System.out.println("A branch with that name does not exist.");
             return;
         }
-        Branch thisBranch = readObject(branch, Branch.class);
-        if (thisBranch.getName().equals(getBranch().getName())) {
+        if (name.equals(getBranch().getName())) {
             System.out.println("Cannot remove the current branch.");
             return;
         }
-        branch.delete();
+        getRefs().delete(name);
     }
 
     public void reset(String...args) throws IOException {
@@ -624,85 +846,82 @@ public class Reposotiry implements Serializable {
         if (helper(2, args)) {
             return;
         }
-        String commitID = args[1];
-        File thisCommit = new File(COMMITS + File.separator
-                + commitID + ".txt");
-        if (!thisCommit.exists()) {
-            System.out.println("No commit with that id exists.");
+        String commitID = resolveCommit(args[1]);
+        if (commitID == null) {
             return;
         }
-        Commit replacement = readObject(thisCommit, Commit.class);
+        Commit replacement = readCommit(commitID);
         if (!checkIfUntracked(getHeadCommit(), replacement)) {
             return;
         }
-        for (String file: Objects.requireNonNull(plainFilenamesIn(_CWD))) {
-            if (getHeadCommit().getObjects().containsKey(file)
-                    && !replacement.getObjects().containsKey(file)) {
-                Utils.restrictedDelete(file);
-            }
-        }
-        getBranch().changeLastCommit(replacement);
-        writeObject(HEAD_BRANCH, getBranch());
-        writeObject(new File(BRANCHES + File.separator
-                + getBranch().getName() + ".txt"), getBranch());
-        this._head = replacement;
-        for (String filename : replacement.getObjects().keySet()) {
-            checkout(filename);
-        }
+        Commit current = getHeadCommit();
+        moveBranch(replacement);
+        checkoutCommit(current, replacement);
         getStage().clear();
-        writeObject(STAGING_AREA, getStage());
+        saveStage();
+    }
+
+    /** Makes the working tree that of commit TO, replacing that of commit
+     *  FROM.  The files tracked in FROM but not in TO, found by diffing
+     *  their trees, are deleted first.  Then each file of TO is written
+     *  only if its working copy does not already hold its blob, which the
+     *  stat cache answers without reading files that have not changed, so
+     *  switching between commits that differ in a few files writes only
+     *  those, along with any that were modified in the working tree.  The
+     *  files are checked and written on Parallel.ioThreads() threads, and
+     *  the stat cache records each as it is written. */
+    private void checkoutCommit(Commit from, Commit to) {
+        WorkTree work = getWorkTree();
+        StatCache stat = getStatCache();
+        ObjectStore store = getStore();
+        Tree.diff(store, from.getTree(), to.getTree(),
+            (path, old, now) -> {
+                if (now == null) {
+                    work.delete(path);
+                    stat.remove(path);
+                }
+            });
+        TreeMap<String, String> files = to.getObjects();
+        Parallel.map(new ArrayList<>(files.keySet()), Parallel.ioThreads(),
+            path -> {
+                String hash = files.get(path);
+                File file = work.file(path);
+                if (hash.equals(stat.hash(path, file))) {
+                    return null;
+                }
+                work.makeParents(path);
+                store.copyTo(hash, file);
+                return path;
+            },
+            path -> {
+                if (path != null) {
+                    stat.update(path, work.file(path), files.get(path));
+                }
+            });
     }
 
     public void merge(String...args) throws IOException {
-        if ((!commitraExists()) || helper(2, args)
-                || mergeErrors(args[1])) {
+        if ((!commitraExists()) || helper(2, args)) {
             return;
         }
-        File givenBranch = new File(BRANCHES
-                + File.separator + args[1] + ".txt");
-        Commit head = getHeadCommit();
-        Commit given = readObject(givenBranch, Branch.class).getLastCommit();
-        Commit split = splitPoint(head, given);
-        Boolean conf = false;
-        for (String file: allFiles(head, split, given)) {
-            String hHash = head.getObjects().get(file);
-            String gHash = given.getObjects().get(file);
-            String sHash = split.getObjects().get(file);
-            boolean conflict = false;
-            if (head.getObjects().containsKey(file)
-                    && given.getObjects().containsKey(file)) {
-                conflict = !hHash.equals(sHash) && !gHash.equals(sHash)
-                        && !hHash.equals(gHash);
-            }
-
-            if (split.getObjects().containsKey(file)) {
-                if (conflict) {
-                    mergeHelper1(hHash, file, gHash);
-                    conf = true;
-                } else if (head.getObjects().containsKey(file)
-                        && hHash.equals(sHash)
-                        && !given.getObjects().containsKey(file)) {
-                    remove("remove", file);
-                } else if (given.getObjects().containsKey(file)
-                        && !gHash.equals(sHash) && sHash.equals(hHash)) {
-                    checkout(file, given.getOwnID());
-                } else if (given.getObjects().containsKey(file)
-                        && gHash.equals(sHash)
-                        && !head.getObjects().containsKey(file)) {
-                    getStage().addRemove(file);
-                }
-            } else {
-                if (conflict) {
-                    mergeHelper1(hHash, file, gHash);
-                    conf = true;
-                } else if (given.getObjects().containsKey(file)
-                        && !head.getObjects().containsKey(file)) {
-                    checkout(file, given.getOwnID());
-                    add("add", file);
-                }
+        String givenID = getRefs().resolve(args[1]);
+        if (givenID == null && CommitIndex.isValidPrefix(args[1])) {
+            givenID = resolveCommit(args[1]);
+            if (givenID == null) {
+                return;
             }
         }
-        if (conf) {
+        if (mergeErrors(args[1], givenID)) {
+            return;
+        }
+        Commit head = getHeadCommit();
+        Commit given = readCommit(givenID);
+        Commit split = splitPoint(head, given);
+        MergePlan plan = MergePlan.plan(getStore(),
+                split == null ? null : split.getTree(), head.getTree(),
+                given.getTree());
+        if (applyMerge(plan)) {
+            saveStage();
             System.out.println("Encountered a merge conflict.");
             return;
         } else {
@@ -712,92 +931,128 @@ public class Reposotiry implements Serializable {
         }
     }
 
-    public ArrayList<String> allFiles(Commit c, Commit s, Commit g) {
-        ArrayList<String> allFiles = new ArrayList<>(c.getObjects().keySet());
-
-        for (String file : s.getObjects().keySet()) {
-            if (!allFiles.contains(file)) {
-                allFiles.add(file);
+    /** Carries out the actions of PLAN on the working tree, staging the
+     *  files taken, removed and merged cleanly.  Files whose merge has
+     *  conflicts are written with conflict markers and left unstaged.
+     *  Returns true iff there were conflicts. */
+    private boolean applyMerge(MergePlan plan) throws IOException {
+        boolean conflicts = false;
+        for (MergePlan.Action action : plan.actions()) {
+            String path = action.path;
+            switch (action.kind) {
+            case TAKE:
+                File file = getWorkTree().file(path);
+                getWorkTree().makeParents(path);
+                getStore().copyTo(action.theirs, file);
+                getStatCache().update(path, file, action.theirs);
+                getStage().add(path, action.theirs);
+                break;
+            case REMOVE:
+                getWorkTree().delete(path);
+                getStatCache().remove(path);
+                getStage().addRemove(path);
+                break;
+            default:
+                if (!mergeFile(action)) {
+                    conflicts = true;
+                }
+                break;
             }
         }
+        return conflicts;
+    }
 
-        for (String file : g.getObjects().keySet()) {
-            if (!allFiles.contains(file)) {
-                allFiles.add(file);
-            }
+    /** Writes the line-level merge of the versions of ACTION's file and
+     *  stages it if it has no conflicts.  Returns true iff it had none. */
+    private boolean mergeFile(MergePlan.Action action) throws IOException {
+        File file = getWorkTree().file(action.path);
+        getWorkTree().makeParents(action.path);
+        int conflicts;
+        try (OutputStream out = new BufferedOutputStream(
+                new FileOutputStream(file), ObjectStore.BUFFER_SIZE)) {
+            conflicts = Merge3.merge(blob(action.base), blob(action.ours),
+                    blob(action.theirs), out);
+        }
+        if (conflicts > 0) {
+            return false;
         }
+        String hash = getStore().writeFile(file);
+        getStatCache().update(action.path, file, hash);
+        getStage().add(action.path, hash);
+        return true;
+    }
 
-        return allFiles;
+    /** Returns the contents of blob HASH, or null if HASH is null. */
+    private byte[] blob(String hash) {
+        return hash == null ? null : getStore().read(hash);
+    }
+
+    public void pack(String...args) {
+        if (!commitraExists()) {
+            return;
+        }
+        if (helper(1, args)) {
+            return;
+        }
+        if (!getStore().looseIds().isEmpty()) {
+            TreeMap<String, String> names = new TreeMap<>();
+            HashSet<String> trees = new HashSet<>();
+            for (CommitGraph.Node node : getGraph().nodes()) {
+                Tree.walk(getStore(), readCommitHeader(node.id).getTree(),
+                        trees, names);
+            }
+            getStore().pack(names);
+        }
+        getRefs().pack();
+        new CommitIndex().rebuild();
     }
 
     public ArrayList<String> p2Commits(String p2) {
-        File parent = new File(COMMITS + File.separator
-                + p2 + ".txt");
-        Commit parent2 = readObject(parent, Commit.class);
         ArrayList<String> ancestors = new ArrayList<>();
+        CommitGraph.Node parent2 = getGraph().get(p2);
 
         while (parent2 != null) {
-            ancestors.add(parent2.getOwnID());
-            parent = new File(COMMITS + File.separator
-                    + parent2.getParentID() + ".txt");
-            if (parent.exists()) {
-                parent2 = readObject(parent, Commit.class);
-            } else {
-                parent2 = null;
-            }
+            ancestors.add(parent2.id);
+            parent2 = parent2.hasParent()
+                    ? getGraph().get(parent2.parent) : null;
         }
 
         return ancestors;
     }
 
-    public void mergeHelper1(String hBlob, String file, String gBlob) {
-        File merge = new File(_CWD + File.separator + file);
-        File head = new File(OBJECTS + File.separator + hBlob + ".txt");
-        File given = new File(OBJECTS + File.separator + gBlob + ".txt");
-        String contents = "<<<<<<< HEAD\n";
-        if (head.exists()) {
-            contents += readContentsAsString(head);
-        }
-        contents += "=======\n";
-        if (given.exists()) {
-            contents += readContentsAsString(given);
-        }
-        contents += ">>>>>>>";
-        writeContents(merge, contents);
-    }
-
-    public boolean mergeErrors(String branch) throws IOException {
-        File givenBranch = new File(BRANCHES
-                + File.separator + branch + ".txt");
-        if (!givenBranch.exists()) {
+    /** Returns true, after printing why, if branch or commit BRANCH, with
+     *  id GIVENID or null if there is none, cannot be merged into the
+     *  current branch.  Fast-forwards the current branch instead if it
+     *  is an ancestor of BRANCH. */
+    public boolean mergeErrors(String branch, String givenID)
+            throws IOException {
+        if (givenID == null) {
             System.out.println("A branch with that name does not exist.");
             return true;
         }
         Commit head = getHeadCommit();
-        Commit given = readObject(givenBranch, Branch.class).getLastCommit();
-        Commit split = splitPoint(head, given);
-        ArrayList<String> ancestryHead = ancestorList(head);
+        Commit given = readCommit(givenID);
         if (!checkIfUntracked(head, given)) {
             return true;
         }
 
-        if (!getStage().getRemoveFiles().isEmpty()
-                || !getStage().getAddFiles().isEmpty()) {
+        if (!getStage().isEmpty()) {
             System.out.println("You have uncommitted changes.");
             return true;
         }
-        if (readObject(givenBranch, Branch.class).
-                getName().equals(getBranch().getName())) {
+        if (branch.equals(getBranch().getName())) {
             System.out.println("Cannot merge a branch with itself.");
             return true;
         }
 
-        if (ancestryHead.contains(given.getOwnID())) {
+        String split = new MergeBase(getGraph())
+                .find(head.getOwnID(), given.getOwnID());
+        if (given.getOwnID().equals(split)) {
             System.out.println("Given branch is an "
                     + "ancestor of the current branch.");
             return true;
-        } else if (split.equals(head)) {
-            _switchBranch(readObject(givenBranch, Branch.class));
+        } else if (head.getOwnID().equals(split)) {
+            _switchBranch(new Branch(getBranch().getName(), given));
             System.out.println("Current branch fast-forwarded.");
             return true;
         }
@@ -806,83 +1061,37 @@ public class Reposotiry implements Serializable {
     }
 
     public Commit splitPoint(Commit head, Commit given) {
-        Commit split = null;
-        ArrayList<String> commitList = ancestorList(head);
-
-        for (String commit: ancestorList(given)) {
-            if (commitList.contains(commit)) {
-                File s = new File(COMMITS + File.separator
-                        + commit + ".txt");
-                split = readObject(s, Commit.class);
-                break;
-            }
-        }
-
-        return split;
-    }
-
-    public ArrayList<String> ancestorList(Commit current) {
-        ArrayList<String> commitList = new ArrayList<>();
-
-        while (current != null && readObject(new File(COMMITS
-                + File.separator
-                + current.getOwnID() + ".txt"), Commit.class) != null) {
-
-            commitList.add(current.getOwnID());
-            if (current instanceof MergeCommit) {
-                File p2 = new File (COMMITS + File.separator
-                        + ((MergeCommit) current).getParent2() + ".txt");
-                Commit parent = readObject(p2, Commit.class);
-                commitList.addAll(ancestorList(parent));
-            }
-            if (!current.getParentID().equals("")) {
-                current = readObject(new File(COMMITS
-                        + File.separator
-                        + current.getParentID() + ".txt"), Commit.class);
-            } else {
-                current = null;
-            }
-        }
-
-        return commitList;
+        String split = new MergeBase(getGraph())
+                .find(head.getOwnID(), given.getOwnID());
+        return split == null ? null : readCommit(split);
     }
 
 
+    /** Returns true, or else prints an error and returns false, if no
+     *  working file untracked in HEAD would be overwritten by a file of
+     *  GIVEN.  Only the files GIVEN has and HEAD lacks are looked at. */
     public boolean checkIfUntracked(Commit head, Commit given) {
-        List<String> cwdFiles = plainFilenamesIn(_CWD);
-        assert cwdFiles != null;
-        for (String filename : cwdFiles) {
-            if (!head.getObjects().containsKey(filename)
-                    && given.getObjects().containsKey(filename)) {
-                System.out.println("There is an untracked file in the way; "
-                        + "delete it, or add and commit it first.");
-                return false;
-            }
+        boolean[] inTheWay = new boolean[1];
+        Tree.diff(getStore(), head.getTree(), given.getTree(),
+            (path, old, now) -> {
+                if (old == null && getWorkTree().file(path).isFile()) {
+                    inTheWay[0] = true;
+                }
+            });
+        if (inTheWay[0]) {
+            System.out.println("There is an untracked file in the way; "
+                    + "delete it, or add and commit it first.");
+            return false;
         }
         return true;
     }
 
     public void mergeCommit(String msg, Commit parent2) throws IOException {
-        @SuppressWarnings("unchecked")
-        TreeMap<String, String> newBlobs =
-                (TreeMap<String, String>) getHeadCommit().getObjects().clone();
-
-        for (String filename : parent2.getObjects().keySet()) {
-            if (!newBlobs.containsKey(filename)) {
-                newBlobs.put(filename, parent2.getObjects().get(filename));
-            }
-        }
-
-        for (String x : _staging.getRemoveFiles()) {
-            newBlobs.remove(x);
-        }
-
-        for (String x: getStage().getAddFiles().keySet()) {
-            newBlobs.put(x, getStage().getAddFiles().get(x));
-        }
+        String tree = Tree.update(getStore(), getHeadCommit().getTree(),
+                getStage().getAddFiles(), getStage().getRemoveFiles());
 
         getStage().clear();
-        writeObject(STAGING_AREA, getStage());
+        saveStage();
 
         SimpleDateFormat formatter =
                 new SimpleDateFormat("EEE MMM dd HH:mm:ss yyyy Z");
@@ -890,20 +1099,16 @@ public class Reposotiry implements Serializable {
         String date = formatter.format(time);
 
         MergeCommit child = new MergeCommit(msg, getHeadCommit().getOwnID(),
-                parent2.getOwnID(), newBlobs, date);
-        this._head = child;
-        getBranch().changeLastCommit(child);
+                parent2.getOwnID(), tree, date);
 
         File childCommit = new File(COMMITS + File.separator
                 + child.getOwnID() + ".txt");
         childCommit.createNewFile();
         writeObject(childCommit, child);
+        recordCommit(child);
         Utils.join(COMMITS, child.getOwnID());
 
-        writeObject(HEAD_BRANCH, getBranch());
-        writeObject(
-                new File(BRANCHES + File.separator
-                        + getBranch().getName() + ".txt"), getBranch());
+        moveBranch(child);
 
     }
 
@@ -924,15 +1129,108 @@ public class Reposotiry implements Serializable {
         return true;
     }
 
+    /** Returns the commit with hash ID. */
+    static Commit readCommit(String id) {
+        synchronized (COMMIT_CACHE) {
+            Commit cached = COMMIT_CACHE.get(id);
+            if (cached != null) {
+                return cached.withoutFiles();
+            }
+        }
+        Commit commit = readObject(new File(COMMITS + File.separator
+                + id + ".txt"), Commit.class);
+        synchronized (COMMIT_CACHE) {
+            COMMIT_CACHE.put(id, commit.withoutFiles());
+        }
+        return commit;
+    }
+
+    /** Returns the commit with hash ID, with only its parents, time and
+     *  message read; its getObjects() is null. */
+    static Commit readCommitHeader(String id) {
+        return BinaryFormat.readHeader(new File(COMMITS + File.separator
+                + id + ".txt"));
+    }
+
+    public CommitGraph getGraph() {
+        if (this._graph == null) {
+            this._graph = CommitGraph.load();
+        }
+        return this._graph;
+    }
+
+    public MessageIndex getMessages() {
+        if (this._messages == null) {
+            this._messages = MessageIndex.load();
+        }
+        return this._messages;
+    }
+
+    public ObjectStore getStore() {
+        return ObjectStore.current();
+    }
+
+    public Refs getRefs() {
+        if (this._refs == null) {
+            this._refs = new Refs();
+        }
+        return this._refs;
+    }
+
+    public WorkTree getWorkTree() {
+        if (this._work == null) {
+            this._work = new WorkTree(_CWD);
+        }
+        return this._work;
+    }
+
+    /** Returns NAME, a file named on the command line, as a path in the
+     *  working tree, or NAME itself if it lies outside it. */
+    private String pathArg(String name) {
+        String path = getWorkTree().normalize(name);
+        return path == null ? name : path;
+    }
+
+    public StatCache getStatCache() {
+        if (this._stat == null) {
+            this._stat = StatCache.load();
+        }
+        return this._stat;
+    }
+
+    /** Writes back any cache that this command has changed. */
+    public void saveCaches() {
+        if (this._stat != null) {
+            this._stat.save();
+        }
+    }
+
+    /** Returns the head commit, reading it on first use, or null if
+     *  there is no repository. */
     public Commit getHeadCommit() {
+        if (this._head == null && Refs.HEAD.exists()) {
+            this._head = readCommit(getRefs().resolve(getRefs().head()));
+        }
         return this._head;
     }
 
+    /** Returns the current branch, reading it on first use, or null if
+     *  there is no repository. */
     public Branch getBranch() {
+        if (this._headBranch == null && Refs.HEAD.exists()) {
+            String name = getRefs().head();
+            this._headBranch = new Branch(name,
+                    readCommit(getRefs().resolve(name)));
+        }
         return this._headBranch;
     }
 
+    /** Returns the staging area, reading it on first use, or null if
+     *  there is no repository. */
     public StagingArea getStage() {
+        if (this._staging == null && STAGING_AREA.exists()) {
+            this._staging = StagingArea.load();
+        }
         return this._staging;
     }
 
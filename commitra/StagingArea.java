@@ -1,43 +1,320 @@
 package commitra;
 
+import java.io.File;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.TreeMap;
 
+/** The staging area: one table of entries keyed by path, in path order,
+ *  each staging a file for addition with its blob, for removal, or as
+ *  intended to be added later.  A path has at most one entry, so staging
+ *  and unstaging are single lookups however many files are staged.
+ *
+ *  It is saved as a snapshot in staging.txt plus a Journal of the
+ *  entries changed since, so staging a few files costs a few appended
+ *  records rather than a rewrite of the table.  When the journal grows
+ *  past the size of the table a new snapshot replaces both.  Snapshot
+ *  and journal carry a generation number, and a journal left from an
+ *  older snapshot by an interrupted compaction is ignored.
+ */
 public class StagingArea implements Serializable {
 
-    /** Contains files set for removal.
+    /** Fixed so that older serialized staging areas can still be read.
+     */
+    private static final long serialVersionUID = -3513548795049535295L;
+
+    /** Pathname to the journal of changes since the snapshot.
+     */
+    static final File LOG = new File(Reposotiry.COMMITRA
+            + File.separator + "staging.log");
+
+    /** Smallest number of journal records worth compacting. */
+    private static final int MIN_COMPACT = 1024;
+
+    /** How a path is staged.
+     */
+    enum State {
+        /** To be added with a given blob. */
+        ADD,
+        /** To be removed. */
+        REMOVE,
+        /** To be added later; tracked but without contents yet. */
+        INTENT
+    }
+
+    /** Journal record code of a path that was unstaged. */
+    private static final int UNSTAGED = State.values().length;
+
+    /** One staged path.
+     */
+    static class Entry {
+        final State state;
+        final String hash;
+
+        Entry(State state, String hash) {
+            this.state = state;
+            this.hash = hash;
+        }
+    }
+
+    /** Contains files set for removal, in Java-serialized staging areas
+     *  of older repositories only.
      */
     private ArrayList<String> _removeFiles;
 
-    /**Contains files to be added.
+    /** Contains files to be added, in Java-serialized staging areas of
+     *  older repositories only.
      */
     private TreeMap<String, String> _addFiles;
 
+    /** Staged entries by path.
+     */
+    private transient TreeMap<String, Entry> _entries;
+
+    /** Paths whose entries changed since the last save.
+     */
+    private transient LinkedHashSet<String> _changed;
+
+    /** True iff the next save must write a new snapshot.
+     */
+    private transient boolean _compact;
+
+    /** Generation of the snapshot this was read from.
+     */
+    private transient long _generation;
+
+    /** Number of records in the journal.
+     */
+    private transient int _logged;
+
     public StagingArea() {
-        this._addFiles = new TreeMap<>();
-        this._removeFiles = new ArrayList<>();
+        this._entries = new TreeMap<>();
+        this._changed = new LinkedHashSet<>();
+        this._compact = true;
+    }
+
+    /** Returns the staging area of the current repository. */
+    static StagingArea load() {
+        StagingArea stage = Utils.readObject(Reposotiry.STAGING_AREA,
+                StagingArea.class);
+        Journal.forEach(LOG, stage::replay);
+        if (stage._logged < 0) {
+            stage._logged = 0;
+            stage._compact = true;
+        }
+        return stage;
     }
 
+    /** Saves the changes since the last save, appending them to the
+     *  journal or, if that has grown too long, writing a new snapshot. */
+    void save() {
+        if (!_compact && _changed.isEmpty()) {
+            return;
+        }
+        if (_compact || _logged + _changed.size()
+                > Math.max(MIN_COMPACT, _entries.size())) {
+            _generation += 1;
+            Utils.writeObject(Reposotiry.STAGING_AREA, this);
+            LOG.delete();
+            _logged = 0;
+        } else {
+            List<byte[]> records = new ArrayList<>();
+            if (_logged == 0) {
+                records.add(ByteBuffer.allocate(8).putLong(_generation)
+                        .array());
+            }
+            for (String path : _changed) {
+                records.add(record(path, _entries.get(path)));
+            }
+            Journal.append(LOG, records.toArray(new byte[0][]));
+            _logged += _changed.size();
+        }
+        _changed.clear();
+        _compact = false;
+    }
+
+    /** Stages FILENAME to be added with blob HASH. */
     public void add(String fileName, String hash) {
-        getAddFiles().put(fileName, hash);
+        put(fileName, new Entry(State.ADD, hash));
     }
 
+    /** Stages FILENAME to be removed. */
     public void addRemove(String fileName) {
-        getRemoveFiles().add(fileName);
+        put(fileName, new Entry(State.REMOVE, null));
+    }
+
+    /** Records that FILENAME is to be added later. */
+    public void addIntent(String fileName) {
+        put(fileName, new Entry(State.INTENT, null));
     }
 
+    /** Unstages FILENAME, whatever its state. */
+    public void unstage(String fileName) {
+        if (_entries.remove(fileName) != null) {
+            _changed.add(fileName);
+        }
+    }
+
+    /** Returns the state of FILENAME, or null if it is not staged. */
+    public State state(String fileName) {
+        Entry entry = _entries.get(fileName);
+        return entry == null ? null : entry.state;
+    }
+
+    /** Returns the blob FILENAME is staged to be added with, or null. */
+    public String addedHash(String fileName) {
+        Entry entry = _entries.get(fileName);
+        return entry != null && entry.state == State.ADD ? entry.hash : null;
+    }
+
+    public boolean isAdded(String fileName) {
+        return state(fileName) == State.ADD;
+    }
+
+    public boolean isRemoved(String fileName) {
+        return state(fileName) == State.REMOVE;
+    }
+
+    /** Returns the paths staged to be added with their blobs, in path
+     *  order. */
     public TreeMap<String, String> getAddFiles() {
-        return this._addFiles;
+        TreeMap<String, String> result = new TreeMap<>();
+        for (Map.Entry<String, Entry> e : _entries.entrySet()) {
+            if (e.getValue().state == State.ADD) {
+                result.put(e.getKey(), e.getValue().hash);
+            }
+        }
+        return result;
+    }
+
+    /** Returns the paths staged for removal, in path order. */
+    public List<String> getRemoveFiles() {
+        return paths(State.REMOVE);
     }
 
-    public ArrayList<String> getRemoveFiles() {
-        return  this._removeFiles;
+    /** Returns the paths intended to be added, in path order. */
+    public List<String> getIntentFiles() {
+        return paths(State.INTENT);
     }
 
+    private List<String> paths(State state) {
+        List<String> result = new ArrayList<>();
+        for (Map.Entry<String, Entry> e : _entries.entrySet()) {
+            if (e.getValue().state == state) {
+                result.add(e.getKey());
+            }
+        }
+        return result;
+    }
+
+    /** Returns true iff nothing is staged to be added or removed. */
+    public boolean isEmpty() {
+        for (Entry entry : _entries.values()) {
+            if (entry.state != State.INTENT) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Returns all entries by path. */
+    Map<String, Entry> entries() {
+        return _entries;
+    }
+
+    /** Unstages every path staged to be added or removed.  Paths that
+     *  are to be added later stay staged. */
     public void clear() {
-        this._addFiles = new TreeMap<>();
-        this._removeFiles = new ArrayList<>();
+        TreeMap<String, Entry> intents = new TreeMap<>();
+        for (Map.Entry<String, Entry> e : _entries.entrySet()) {
+            if (e.getValue().state == State.INTENT) {
+                intents.put(e.getKey(), e.getValue());
+            }
+        }
+        this._entries = intents;
+        this._changed.clear();
+        this._compact = true;
+    }
+
+    /** Returns the generation of the snapshot last read or written. */
+    long generation() {
+        return _generation;
+    }
+
+    /** Sets the entries and generation read from a snapshot. */
+    void restore(TreeMap<String, Entry> entries, long generation) {
+        this._entries = entries;
+        this._generation = generation;
+        this._compact = false;
     }
 
+    private void put(String fileName, Entry entry) {
+        _entries.put(fileName, entry);
+        _changed.add(fileName);
+    }
+
+    /** Returns the journal record setting PATH to ENTRY, or unstaging it
+     *  if ENTRY is null. */
+    private static byte[] record(String path, Entry entry) {
+        byte[] name = path.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(1 + ObjectId.LENGTH
+                + name.length);
+        record.put((byte) (entry == null ? UNSTAGED : entry.state.ordinal()));
+        record.put(CommitGraph.toBytes(entry == null || entry.hash == null
+                ? "" : entry.hash));
+        record.put(name);
+        return record.array();
+    }
+
+    /** Applies journal record RECORD.  The first record of a journal is
+     *  its generation; a journal of another generation is skipped. */
+    private void replay(byte[] record) {
+        if (_logged == 0) {
+            _logged = ByteBuffer.wrap(record).getLong() == _generation
+                    ? 1 : -1;
+            return;
+        }
+        if (_logged < 0) {
+            return;
+        }
+        _logged += 1;
+        int code = record[0];
+        String hash = CommitGraph.toHex(Arrays.copyOfRange(record, 1,
+                1 + ObjectId.LENGTH));
+        String path = new String(record, 1 + ObjectId.LENGTH,
+                record.length - 1 - ObjectId.LENGTH, StandardCharsets.UTF_8);
+        if (code == UNSTAGED) {
+            _entries.remove(path);
+        } else {
+            _entries.put(path, new Entry(State.values()[code],
+                    hash.isEmpty() ? null : hash));
+        }
+    }
+
+    /** Replaces a staging area read by Java serialization from an older
+     *  repository with one built from its lists. */
+    private Object readResolve() {
+        if (_entries != null) {
+            return this;
+        }
+        StagingArea stage = new StagingArea();
+        if (_addFiles != null) {
+            for (Map.Entry<String, String> e : _addFiles.entrySet()) {
+                stage._entries.put(e.getKey(),
+                        new Entry(State.ADD, e.getValue()));
+            }
+        }
+        if (_removeFiles != null) {
+            for (String path : _removeFiles) {
+                stage._entries.put(path, new Entry(State.REMOVE, null));
+            }
+        }
+        return stage;
+    }
 }
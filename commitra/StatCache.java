@@ -0,0 +1,233 @@
+package commitra;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/** Cache of the blob hash of each working file, keyed by path and
+ *  validated by the file's size, modification time, change time and
+ *  inode.  A file is read and hashed again only when one of those
+ *  changes.  The cache may be used from several threads at once; files
+ *  are hashed outside its lock.
+ *
+ *  A file modified in the same clock tick as the cache was written could
+ *  keep identical stat data, so entries whose modification time is not
+ *  older than the cache file itself are treated as suspect and rehashed.
+ */
+class StatCache {
+
+    /** Pathname to the stat cache file.
+     */
+    static final File INDEX = new File(Reposotiry.COMMITRA
+            + File.separator + "index");
+
+    /** First four bytes of the cache file. */
+    private static final int MAGIC = 0x43494e31;
+
+    /** Stat data and hash of one working file.
+     */
+    static class Entry {
+        final long size;
+        final long mtime;
+        final long ctime;
+        final long inode;
+        final String hash;
+
+        Entry(long size, long mtime, long ctime, long inode, String hash) {
+            this.size = size;
+            this.mtime = mtime;
+            this.ctime = ctime;
+            this.inode = inode;
+            this.hash = hash;
+        }
+
+        boolean sameStat(Entry other) {
+            return size == other.size && mtime == other.mtime
+                    && ctime == other.ctime && inode == other.inode;
+        }
+    }
+
+    /** Entries by path.
+     */
+    private final TreeMap<String, Entry> _entries = new TreeMap<>();
+
+    /** Modification time of the cache file when it was loaded, in
+     *  nanoseconds; entries not older than this are suspect.
+     */
+    private long _written = Long.MIN_VALUE;
+
+    /** True iff _entries differs from the cache file.
+     */
+    private boolean _dirty;
+
+    /** The cache file.
+     */
+    private final File _file;
+
+    StatCache(File file) {
+        this._file = file;
+    }
+
+    /** Returns the stat cache of the current repository. */
+    static StatCache load() {
+        StatCache cache = new StatCache(INDEX);
+        cache.read();
+        return cache;
+    }
+
+    /** Returns the blob hash of FILE, stored under PATH, reading and
+     *  hashing it only if its stat data does not match the cache.
+     *  Returns null if FILE does not exist.  The hash is cached with the
+     *  stat data taken before hashing, so a change made while FILE is
+     *  read shows as a mismatch next time. */
+    String hash(String path, File file) {
+        Entry stat = stat(file, null);
+        if (stat == null) {
+            remove(path);
+            return null;
+        }
+        synchronized (this) {
+            Entry cached = _entries.get(path);
+            if (cached != null && cached.sameStat(stat)
+                    && cached.mtime < _written) {
+                return cached.hash;
+            }
+        }
+        String hash = Utils.sha1(file);
+        synchronized (this) {
+            _entries.put(path, new Entry(stat.size, stat.mtime, stat.ctime,
+                    stat.inode, hash));
+            _dirty = true;
+        }
+        return hash;
+    }
+
+    /** Records that FILE, stored under PATH, has just been written with
+     *  the contents of blob HASH. */
+    void update(String path, File file, String hash) {
+        Entry stat = stat(file, hash);
+        if (stat != null) {
+            synchronized (this) {
+                _entries.put(path, stat);
+                _dirty = true;
+            }
+        }
+    }
+
+    /** Forgets PATH. */
+    synchronized void remove(String path) {
+        if (_entries.remove(path) != null) {
+            _dirty = true;
+        }
+    }
+
+    /** Writes the cache back to its file if it has changed, through a
+     *  temporary file.  Entries are then judged against the new file, as
+     *  if the cache had just been loaded from it. */
+    synchronized void save() {
+        if (!_dirty) {
+            return;
+        }
+        File temp = Durability.tempFile(_file);
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(
+                        Files.newOutputStream(temp.toPath())))) {
+            out.writeInt(MAGIC);
+            out.writeInt(_entries.size());
+            for (Map.Entry<String, Entry> e : _entries.entrySet()) {
+                Entry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(entry.size);
+                out.writeLong(entry.mtime);
+                out.writeLong(entry.ctime);
+                out.writeLong(entry.inode);
+                out.write(CommitGraph.toBytes(entry.hash));
+            }
+        } catch (IOException excp) {
+            temp.delete();
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        Durability.commit(temp, _file);
+        try {
+            _written = toNanos(Files.getLastModifiedTime(_file.toPath()));
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        _dirty = false;
+    }
+
+    /** Reads the cache file, if there is a valid one. */
+    private void read() {
+        if (!_file.isFile()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(_file.toPath())))) {
+            _written = toNanos(Files.getLastModifiedTime(_file.toPath()));
+            if (in.readInt() != MAGIC) {
+                return;
+            }
+            byte[] hash = new byte[CommitGraph.ID_BYTES];
+            for (int n = in.readInt(); n > 0; n -= 1) {
+                String path = in.readUTF();
+                long size = in.readLong();
+                long mtime = in.readLong();
+                long ctime = in.readLong();
+                long inode = in.readLong();
+                in.readFully(hash);
+                _entries.put(path, new Entry(size, mtime, ctime, inode,
+                        CommitGraph.toHex(hash)));
+            }
+        } catch (IOException excp) {
+            _entries.clear();
+            _dirty = true;
+        }
+    }
+
+    /** Returns the stat data of FILE with hash HASH, or null if FILE is
+     *  not a plain file.  Uses the unix attribute view where available and
+     *  falls back to basic attributes elsewhere. */
+    static Entry stat(File file, String hash) {
+        Path path = file.toPath();
+        try {
+            try {
+                Map<String, Object> attrs = Files.readAttributes(path,
+                        "unix:size,lastModifiedTime,ctime,ino,isRegularFile");
+                if (!(Boolean) attrs.get("isRegularFile")) {
+                    return null;
+                }
+                return new Entry((Long) attrs.get("size"),
+                        toNanos((FileTime) attrs.get("lastModifiedTime")),
+                        toNanos((FileTime) attrs.get("ctime")),
+                        (Long) attrs.get("ino"), hash);
+            } catch (UnsupportedOperationException excp) {
+                BasicFileAttributes attrs = Files.readAttributes(path,
+                        BasicFileAttributes.class);
+                if (!attrs.isRegularFile()) {
+                    return null;
+                }
+                Object key = attrs.fileKey();
+                return new Entry(attrs.size(),
+                        toNanos(attrs.lastModifiedTime()),
+                        toNanos(attrs.creationTime()),
+                        key == null ? 0 : key.hashCode(), hash);
+            }
+        } catch (IOException excp) {
+            return null;
+        }
+    }
+
+    private static long toNanos(FileTime time) {
+        return time.to(TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,371 @@
+package commitra;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/** One directory of a commit: its files and subdirectories by name, each
+ *  with the id of the blob or tree holding it.  Trees are stored in the
+ *  object store under the hash of their encoding, so an unchanged
+ *  directory has the same id in every commit and is written only once,
+ *  and two commits can be compared by skipping every subtree whose id
+ *  they share.
+ *
+ *  A tree is encoded as MAGIC, the number of entries and then, in name
+ *  order, a kind byte (BLOB or TREE), the name as a length and UTF-8
+ *  bytes, and the 20-byte id.  Paths within a commit use "/" between
+ *  directory names.
+ */
+class Tree {
+
+    /** First four bytes of a tree, "TRE" and version 1. */
+    static final int MAGIC = 0x54524501;
+
+    /** Kind byte of a file entry. */
+    private static final int BLOB = 0;
+
+    /** Kind byte of a subdirectory entry. */
+    private static final int TREE = 1;
+
+    /** Separator between the directory names of a path. */
+    static final String SEPARATOR = "/";
+
+    /** Number of decoded trees kept in memory. */
+    private static final int CACHE_SIZE = 4096;
+
+    /** Recently read trees by id.  Trees never change once written, so
+     *  entries never go stale.
+     */
+    private static final Map<String, Tree> CACHE =
+        new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Tree> e) {
+                return size() > CACHE_SIZE;
+            }
+        };
+
+    /** Action taken for each path that differs between two trees.
+     */
+    interface Visitor {
+        /** Called for PATH, whose blob is OLD in the first tree and NEW
+         *  in the second, either being null where the path is absent. */
+        void visit(String path, String old, String now);
+    }
+
+    /** Ids of the files in this directory, by name.
+     */
+    private final TreeMap<String, String> _blobs = new TreeMap<>();
+
+    /** Ids of the subdirectories of this directory, by name.
+     */
+    private final TreeMap<String, String> _trees = new TreeMap<>();
+
+    /** Returns the tree with id ID from STORE, or an empty tree if ID is
+     *  null. */
+    static Tree read(ObjectStore store, String id) {
+        if (id == null) {
+            return new Tree();
+        }
+        synchronized (CACHE) {
+            Tree cached = CACHE.get(id);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        Tree tree = decode(store.read(id));
+        synchronized (CACHE) {
+            CACHE.put(id, tree);
+        }
+        return tree;
+    }
+
+    /** Writes the trees holding FILES, a map from path to blob id, to
+     *  STORE, and returns the id of the root. */
+    static String write(ObjectStore store, Map<String, String> files) {
+        return update(store, null, files, Set.of());
+    }
+
+    /** Returns the id of the root tree obtained from ROOT by removing
+     *  the paths in REMOVE and then setting each path in PUT to its blob
+     *  id, writing new trees to STORE.  Only the directories on changed
+     *  paths are read and rewritten; all others are shared with ROOT. */
+    static String update(ObjectStore store, String root,
+                         Map<String, String> put, Collection<String> remove) {
+        TreeMap<String, String> puts = new TreeMap<>(put);
+        TreeMap<String, String> removes = new TreeMap<>();
+        for (String path : remove) {
+            if (!puts.containsKey(path)) {
+                removes.put(path, null);
+            }
+        }
+        String id = update(store, root, puts, removes);
+        return id == null ? new Tree().store(store) : id;
+    }
+
+    /** Applies PUTS and REMOVES, sorted maps of paths relative to ROOT,
+     *  as in update, and returns the new id of ROOT, or null if it is
+     *  left empty. */
+    private static String update(ObjectStore store, String root,
+                                 TreeMap<String, String> puts,
+                                 TreeMap<String, String> removes) {
+        if (root != null && puts.isEmpty() && removes.isEmpty()) {
+            return root;
+        }
+        Tree old = read(store, root);
+        Tree tree = new Tree();
+        tree._blobs.putAll(old._blobs);
+        tree._trees.putAll(old._trees);
+        TreeMap<String, TreeMap<String, String>> subPuts = new TreeMap<>();
+        TreeMap<String, TreeMap<String, String>> subRemoves = new TreeMap<>();
+        split(puts, tree._blobs, subPuts);
+        split(removes, tree._blobs, subRemoves);
+        Set<String> dirs = new HashSet<>(subPuts.keySet());
+        dirs.addAll(subRemoves.keySet());
+        for (String dir : dirs) {
+            String id = update(store, tree._trees.get(dir),
+                    subPuts.getOrDefault(dir, new TreeMap<>()),
+                    subRemoves.getOrDefault(dir, new TreeMap<>()));
+            if (id == null) {
+                tree._trees.remove(dir);
+            } else {
+                tree._trees.put(dir, id);
+            }
+        }
+        return tree.isEmpty() ? null : tree.store(store);
+    }
+
+    /** Moves each path of CHANGES that names a file of this directory
+     *  into FILES, setting it to its value or removing it if that is
+     *  null, and groups the rest by their first directory name in SUB. */
+    private static void split(TreeMap<String, String> changes,
+                              TreeMap<String, String> files,
+                              TreeMap<String, TreeMap<String, String>> sub) {
+        for (Map.Entry<String, String> e : changes.entrySet()) {
+            String path = e.getKey();
+            int slash = path.indexOf(SEPARATOR);
+            if (slash < 0) {
+                if (e.getValue() == null) {
+                    files.remove(path);
+                } else {
+                    files.put(path, e.getValue());
+                }
+            } else {
+                sub.computeIfAbsent(path.substring(0, slash),
+                        k -> new TreeMap<>())
+                        .put(path.substring(slash + 1), e.getValue());
+            }
+        }
+    }
+
+    /** Returns every file under tree ROOT of STORE, as a map from path to
+     *  blob id. */
+    static TreeMap<String, String> files(ObjectStore store, String root) {
+        TreeMap<String, String> result = new TreeMap<>();
+        addFiles(store, root, "", result);
+        return result;
+    }
+
+    private static void addFiles(ObjectStore store, String id,
+                                 String prefix, TreeMap<String, String> out) {
+        Tree tree = read(store, id);
+        for (Map.Entry<String, String> e : tree._blobs.entrySet()) {
+            out.put(prefix + e.getKey(), e.getValue());
+        }
+        for (Map.Entry<String, String> e : tree._trees.entrySet()) {
+            addFiles(store, e.getValue(), prefix + e.getKey() + SEPARATOR,
+                    out);
+        }
+    }
+
+    /** Returns the blob id of PATH under tree ROOT of STORE, or null if
+     *  there is no such file.  Reads only the directories on PATH. */
+    static String lookup(ObjectStore store, String root, String path) {
+        Tree tree = read(store, root);
+        int slash = path.indexOf(SEPARATOR);
+        while (slash >= 0) {
+            String dir = tree._trees.get(path.substring(0, slash));
+            if (dir == null) {
+                return null;
+            }
+            tree = read(store, dir);
+            path = path.substring(slash + 1);
+            slash = path.indexOf(SEPARATOR);
+        }
+        return tree._blobs.get(path);
+    }
+
+    /** Calls VISITOR, in path order, on each file whose blob differs
+     *  between trees OLD and NOW of STORE, either of which may be null
+     *  for an empty tree.  Subtrees with the same id in both are skipped
+     *  without being read. */
+    static void diff(ObjectStore store, String old, String now,
+                     Visitor visitor) {
+        diff(store, old, now, "", visitor);
+    }
+
+    private static void diff(ObjectStore store, String old, String now,
+                             String prefix, Visitor visitor) {
+        if (old != null && old.equals(now)) {
+            return;
+        }
+        Tree a = read(store, old);
+        Tree b = read(store, now);
+        TreeMap<String, Boolean> names = new TreeMap<>();
+        for (String name : a._blobs.keySet()) {
+            names.put(name, false);
+        }
+        for (String name : b._blobs.keySet()) {
+            names.put(name, false);
+        }
+        for (String name : a._trees.keySet()) {
+            names.put(name + SEPARATOR, true);
+        }
+        for (String name : b._trees.keySet()) {
+            names.put(name + SEPARATOR, true);
+        }
+        for (Map.Entry<String, Boolean> e : names.entrySet()) {
+            String name = e.getKey();
+            if (e.getValue()) {
+                String dir = name.substring(0, name.length() - 1);
+                String x = a._trees.get(dir);
+                String y = b._trees.get(dir);
+                if (x == null || !x.equals(y)) {
+                    diff(store, x, y, prefix + name, visitor);
+                }
+            } else {
+                String x = a._blobs.get(name);
+                String y = b._blobs.get(name);
+                if (x == null || !x.equals(y)) {
+                    visitor.visit(prefix + name, x, y);
+                }
+            }
+        }
+    }
+
+    /** Adds to IDS the id of tree ROOT of STORE and of every tree below
+     *  it, and to BLOBS the id of every file below it with its name.
+     *  Trees already in IDS are not read again. */
+    static void walk(ObjectStore store, String root, Set<String> ids,
+                     Map<String, String> blobs) {
+        if (root == null || !ids.add(root)) {
+            return;
+        }
+        Tree tree = read(store, root);
+        for (Map.Entry<String, String> e : tree._blobs.entrySet()) {
+            blobs.put(e.getValue(), e.getKey());
+        }
+        for (String id : tree._trees.values()) {
+            walk(store, id, ids, blobs);
+        }
+    }
+
+    /** Returns the ids of the files in this directory, by name.  The map
+     *  must not be changed. */
+    TreeMap<String, String> blobs() {
+        return _blobs;
+    }
+
+    /** Returns the ids of the subdirectories of this directory, by name.
+     *  The map must not be changed. */
+    TreeMap<String, String> trees() {
+        return _trees;
+    }
+
+    boolean isEmpty() {
+        return _blobs.isEmpty() && _trees.isEmpty();
+    }
+
+    /** Writes this tree to STORE, unless it is already there, and
+     *  returns its id. */
+    private String store(ObjectStore store) {
+        byte[] contents = encode();
+        String id = Utils.sha1(contents);
+        store.write(id, contents);
+        synchronized (CACHE) {
+            CACHE.put(id, this);
+        }
+        return id;
+    }
+
+    private byte[] encode() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeInt(_blobs.size() + _trees.size());
+            Iterator<Map.Entry<String, String>> files =
+                    _blobs.entrySet().iterator();
+            Iterator<Map.Entry<String, String>> dirs =
+                    _trees.entrySet().iterator();
+            Map.Entry<String, String> file = next(files);
+            Map.Entry<String, String> dir = next(dirs);
+            while (file != null || dir != null) {
+                if (dir == null
+                        || (file != null
+                            && file.getKey().compareTo(dir.getKey()) < 0)) {
+                    writeEntry(out, BLOB, file);
+                    file = next(files);
+                } else {
+                    writeEntry(out, TREE, dir);
+                    dir = next(dirs);
+                }
+            }
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private static Map.Entry<String, String> next(
+            Iterator<Map.Entry<String, String>> entries) {
+        return entries.hasNext() ? entries.next() : null;
+    }
+
+    private static void writeEntry(DataOutputStream out, int kind,
+                                   Map.Entry<String, String> entry)
+            throws IOException {
+        byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+        out.writeByte(kind);
+        out.writeInt(name.length);
+        out.write(name);
+        out.write(CommitGraph.toBytes(entry.getValue()));
+    }
+
+    private static Tree decode(byte[] contents) {
+        try {
+            DataInputStream in = new DataInputStream(
+                    new ByteArrayInputStream(contents));
+            if (in.readInt() != MAGIC) {
+                throw new IllegalArgumentException("not a tree");
+            }
+            Tree tree = new Tree();
+            byte[] id = new byte[ObjectId.LENGTH];
+            for (int n = in.readInt(); n > 0; n -= 1) {
+                int kind = in.readByte();
+                byte[] name = new byte[in.readInt()];
+                in.readFully(name);
+                in.readFully(id);
+                String key = new String(name, StandardCharsets.UTF_8);
+                if (kind == TREE) {
+                    tree._trees.put(key, Utils.toHex(id));
+                } else {
+                    tree._blobs.put(key, Utils.toHex(id));
+                }
+            }
+            return tree;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+}
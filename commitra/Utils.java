@@ -2,22 +2,23 @@
  * University of California.  All rights reserved. */
 package commitra;
 
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
-import java.util.Formatter;
 import java.util.List;
 
 
@@ -31,28 +32,59 @@ class Utils {
     /** The length of a complete SHA-1 UID as a hexadecimal numeral. */
     static final int UID_LENGTH = 40;
 
+    /** Size of the buffers used to stream file contents. */
+    static final int BUFFER_SIZE = 1 << 16;
+
+    /** Lower-case hex digits, indexed by value. */
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /** One SHA-1 digest per thread, reset before each use rather than
+     *  looked up again for every hash. */
+    private static final ThreadLocal<MessageDigest> SHA1 =
+        ThreadLocal.withInitial(() -> {
+            try {
+                return MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException excp) {
+                throw new IllegalArgumentException(
+                    "System does not support SHA-1");
+            }
+        });
+
+    /** Returns this thread's SHA-1 digest, reset.  Callers must finish
+     *  with it before hashing anything else on the same thread. */
+    static MessageDigest sha1Digest() {
+        MessageDigest md = SHA1.get();
+        md.reset();
+        return md;
+    }
+
     /** Returns the SHA-1 hash of the concatenation of VALS, which may
      *  be any mixture of byte arrays and Strings. */
     static String sha1(Object... vals) {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-1");
-            for (Object val : vals) {
-                if (val instanceof byte[]) {
-                    md.update((byte[]) val);
-                } else if (val instanceof String) {
-                    md.update(((String) val).getBytes(StandardCharsets.UTF_8));
-                } else {
-                    throw new IllegalArgumentException("improper type to sha1");
-                }
-            }
-            Formatter result = new Formatter();
-            for (byte b : md.digest()) {
-                result.format("%02x", b);
+        return toHex(sha1Bytes(vals));
+    }
+
+    /** Returns the raw SHA-1 hash of the concatenation of VALS. */
+    private static byte[] sha1Bytes(Object... vals) {
+        MessageDigest md = sha1Digest();
+        for (Object val : vals) {
+            if (val instanceof byte[]) {
+                md.update((byte[]) val);
+            } else if (val instanceof String) {
+                md.update(((String) val).getBytes(StandardCharsets.UTF_8));
+            } else {
+                throw new IllegalArgumentException("improper type to sha1");
             }
-            return result.toString();
-        } catch (NoSuchAlgorithmException excp) {
-            throw new IllegalArgumentException("System does not support SHA-1");
         }
+        return md.digest();
+    }
+
+    /** Returns the SHA-1 hash of the remaining bytes of BUFFER, consuming
+     *  them. */
+    static String sha1(ByteBuffer buffer) {
+        MessageDigest md = sha1Digest();
+        md.update(buffer);
+        return toHex(md.digest());
     }
 
     /** Returns the SHA-1 hash of the concatenation of the strings in
@@ -61,6 +93,41 @@ class Utils {
         return sha1(vals.toArray(new Object[vals.size()]));
     }
 
+    /** Returns the SHA-1 hash of the contents of FILE, read through a
+     *  fixed-size buffer so FILE may be larger than the heap.  Throws
+     *  IllegalArgumentException in case of problems. */
+    static String sha1(File file) {
+        try (FileChannel in = FileChannel.open(file.toPath(),
+                StandardOpenOption.READ)) {
+            return sha1(in);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Returns the SHA-1 hash of the rest of the contents of IN, read
+     *  through a fixed-size buffer. */
+    static String sha1(FileChannel in) throws IOException {
+        MessageDigest md = sha1Digest();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        while (in.read(buffer) >= 0) {
+            buffer.flip();
+            md.update(buffer);
+            buffer.clear();
+        }
+        return toHex(md.digest());
+    }
+
+    /** Returns BYTES as a lower-case hexadecimal numeral. */
+    static String toHex(byte[] bytes) {
+        char[] result = new char[2 * bytes.length];
+        for (int i = 0; i < bytes.length; i += 1) {
+            result[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            result[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(result);
+    }
+
     /* FILE DELETION */
 
     /** Deletes FILE if it exists and is not a directory.  Returns true
@@ -110,7 +177,8 @@ class Utils {
     }
 
     /** Write the result of concatenating the bytes in CONTENTS to FILE,
-     *  creating or overwriting it as needed.  Each object in CONTENTS may be
+     *  creating or replacing it as needed through Durability, so that FILE
+     *  never holds partial contents.  Each object in CONTENTS may be
      *  either a String or a byte array.  Throws IllegalArgumentException
      *  in case of problems. */
     static void writeContents(File file, Object... contents) {
@@ -119,28 +187,34 @@ class Utils {
                 throw
                     new IllegalArgumentException("cannot overwrite directory");
             }
-            BufferedOutputStream str =
-                new BufferedOutputStream(Files.newOutputStream(file.toPath()));
-            for (Object obj : contents) {
-                if (obj instanceof byte[]) {
-                    str.write((byte[]) obj);
+            byte[][] parts = new byte[contents.length][];
+            for (int i = 0; i < contents.length; i += 1) {
+                if (contents[i] instanceof byte[]) {
+                    parts[i] = (byte[]) contents[i];
                 } else {
-                    str.write(((String) obj).getBytes(StandardCharsets.UTF_8));
+                    parts[i] = ((String) contents[i])
+                        .getBytes(StandardCharsets.UTF_8);
                 }
             }
-            str.close();
-        } catch (IOException | ClassCastException excp) {
+            Durability.replace(file, parts);
+        } catch (ClassCastException excp) {
             throw new IllegalArgumentException(excp.getMessage());
         }
     }
 
     /** Return an object of type T read from FILE, casting it to EXPECTEDCLASS.
+     *  FILE may hold either BinaryFormat or Java serialization.
      *  Throws IllegalArgumentException in case of problems. */
     static <T extends Serializable> T readObject(File file,
                                                  Class<T> expectedClass) {
+        byte[] contents = readContents(file);
+        if (contents.length < 2 || ((contents[0] & 0xff) << 8
+                | (contents[1] & 0xff)) != BinaryFormat.JAVA_MAGIC) {
+            return BinaryFormat.decode(contents, expectedClass);
+        }
         try {
             ObjectInputStream in =
-                new ObjectInputStream(new FileInputStream(file));
+                new ObjectInputStream(new ByteArrayInputStream(contents));
             T result = expectedClass.cast(in.readObject());
             in.close();
             return result;
@@ -150,9 +224,14 @@ class Utils {
         }
     }
 
-    /** Write OBJ to FILE. */
+    /** Write OBJ to FILE, in BinaryFormat if it has one and with Java
+     *  serialization otherwise. */
     static void writeObject(File file, Serializable obj) {
-        writeContents(file, serialize(obj));
+        if (BinaryFormat.encodes(obj)) {
+            writeContents(file, BinaryFormat.encode(obj));
+        } else {
+            writeContents(file, serialize(obj));
+        }
     }
 
     /* DIRECTORIES */
@@ -0,0 +1,250 @@
+package commitra;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Predicate;
+
+/** The working directory of a repository, seen as a tree of files named
+ *  by "/"-separated paths relative to its root.  Directories are listed
+ *  in parallel on a fork-join pool, one task per directory, and each
+ *  task returns its files already in path order, so the results only
+ *  need concatenating.  The repository directory and paths matching the
+ *  ignore file are skipped.
+ *
+ *  The ignore file holds one glob pattern per line; blank lines and lines
+ *  starting with "#" are skipped.  A pattern ending in "/" matches only
+ *  directories.  A pattern containing no other "/" matches a file or
+ *  directory of that name anywhere; otherwise it matches paths from the
+ *  root, a leading "/" being dropped.
+ */
+class WorkTree {
+
+    /** Name of the ignore file in the root of the working directory. */
+    static final String IGNORE = ".commitraignore";
+
+    /** Root of the working directory.
+     */
+    private final File _root;
+
+    /** Patterns matched against the name of each entry.
+     */
+    private final List<PathMatcher> _names = new ArrayList<>();
+
+    /** Patterns matched against the path of each entry.
+     */
+    private final List<PathMatcher> _paths = new ArrayList<>();
+
+    /** Patterns matched against the name of each directory.
+     */
+    private final List<PathMatcher> _dirNames = new ArrayList<>();
+
+    /** Patterns matched against the path of each directory.
+     */
+    private final List<PathMatcher> _dirPaths = new ArrayList<>();
+
+    /** The working directory ROOT, with the patterns of its ignore file. */
+    WorkTree(File root) {
+        this._root = root;
+        File ignore = new File(root, IGNORE);
+        if (ignore.isFile()) {
+            for (String line
+                    : Utils.readContentsAsString(ignore).split("\n")) {
+                addPattern(line.trim());
+            }
+        }
+    }
+
+    private void addPattern(String pattern) {
+        if (pattern.isEmpty() || pattern.startsWith("#")) {
+            return;
+        }
+        boolean dirOnly = pattern.endsWith("/");
+        if (dirOnly) {
+            pattern = pattern.substring(0, pattern.length() - 1);
+        }
+        boolean anchored = pattern.contains("/");
+        if (pattern.startsWith("/")) {
+            pattern = pattern.substring(1);
+        }
+        PathMatcher matcher =
+                FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+        if (anchored) {
+            (dirOnly ? _dirPaths : _paths).add(matcher);
+        } else {
+            (dirOnly ? _dirNames : _names).add(matcher);
+        }
+    }
+
+    /** Returns true iff the entry at PATH, named NAME, is ignored, DIR
+     *  being true if it is a directory. */
+    boolean isIgnored(String path, String name, boolean dir) {
+        if (dir && name.equals(Reposotiry.COMMITRA.getName())) {
+            return true;
+        }
+        return matches(_names, name) || matches(_paths, path)
+                || (dir && (matches(_dirNames, name)
+                            || matches(_dirPaths, path)));
+    }
+
+    private static boolean matches(List<PathMatcher> matchers, String path) {
+        if (matchers.isEmpty()) {
+            return false;
+        }
+        Path p = Paths.get(path);
+        for (PathMatcher matcher : matchers) {
+            if (matcher.matches(p)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Returns the file at PATH. */
+    File file(String path) {
+        return new File(_root, path);
+    }
+
+    /** Returns NAME, a path given on the command line relative to the
+     *  root, in "/"-separated form, "" for the root itself, or null if it
+     *  lies outside the root. */
+    String normalize(String name) {
+        Path root = _root.toPath().toAbsolutePath().normalize();
+        Path path = root.resolve(name).normalize();
+        if (!path.startsWith(root)) {
+            return null;
+        }
+        return root.relativize(path).toString()
+                .replace(File.separatorChar, '/');
+    }
+
+    /** Returns, in path order, the path of every file that is not
+     *  ignored and satisfies KEEP.  KEEP is called from several threads
+     *  at once, and only the paths it keeps are held in memory. */
+    List<String> files(Predicate<String> keep) {
+        return ForkJoinPool.commonPool().invoke(
+                new Walk(_root.toPath(), "", keep));
+    }
+
+    /** Returns, as for files(KEEP), the files below directory DIR, a path
+     *  relative to the root or "" for the root itself. */
+    List<String> files(String dir, Predicate<String> keep) {
+        if (dir.isEmpty()) {
+            return files(keep);
+        }
+        File start = file(dir);
+        if (!start.isDirectory()) {
+            return new ArrayList<>();
+        }
+        return ForkJoinPool.commonPool().invoke(
+                new Walk(start.toPath(), dir + "/", keep));
+    }
+
+    /** Deletes the file at PATH, if any, and then each directory above
+     *  it that is left empty, up to but not including the root. */
+    void delete(String path) {
+        File file = file(path);
+        if (file.isDirectory()) {
+            return;
+        }
+        file.delete();
+        for (File dir = file.getParentFile();
+             dir != null && !dir.equals(_root) && dir.delete();
+             dir = dir.getParentFile()) {
+            continue;
+        }
+    }
+
+    /** Creates the directories above the file at PATH. */
+    void makeParents(String path) {
+        File parent = file(path).getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+    }
+
+    /** Task listing one directory and, through subtasks, everything
+     *  below it.
+     */
+    private class Walk extends RecursiveTask<List<String>> {
+
+        /** Directory to list.
+         */
+        private final Path _dir;
+
+        /** Path of _dir relative to the root, with a trailing "/", or ""
+         *  for the root.
+         */
+        private final String _prefix;
+
+        /** Filter on the files returned.
+         */
+        private final Predicate<String> _keep;
+
+        Walk(Path dir, String prefix, Predicate<String> keep) {
+            this._dir = dir;
+            this._prefix = prefix;
+            this._keep = keep;
+        }
+
+        @Override
+        protected List<String> compute() {
+            TreeMap<String, Path> entries = new TreeMap<>();
+            try (DirectoryStream<Path> listing =
+                         Files.newDirectoryStream(_dir)) {
+                for (Path entry : listing) {
+                    String name = entry.getFileName().toString();
+                    BasicFileAttributes attrs = Files.readAttributes(entry,
+                            BasicFileAttributes.class,
+                            LinkOption.NOFOLLOW_LINKS);
+                    if (isIgnored(_prefix + name, name,
+                            attrs.isDirectory())) {
+                        continue;
+                    }
+                    if (attrs.isDirectory()) {
+                        entries.put(name + "/", entry);
+                    } else if (attrs.isRegularFile()) {
+                        entries.put(name, null);
+                    }
+                }
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+            List<Object> parts = new ArrayList<>();
+            for (String name : entries.keySet()) {
+                Path dir = entries.get(name);
+                if (dir == null) {
+                    String path = _prefix + name;
+                    if (_keep.test(path)) {
+                        parts.add(path);
+                    }
+                } else {
+                    Walk sub = new Walk(dir, _prefix + name, _keep);
+                    sub.fork();
+                    parts.add(sub);
+                }
+            }
+            List<String> result = new ArrayList<>();
+            for (Object part : parts) {
+                if (part instanceof Walk) {
+                    result.addAll(((Walk) part).join());
+                } else {
+                    result.add((String) part);
+                }
+            }
+            return result;
+        }
+    }
+}